@@ -0,0 +1,161 @@
+package com.criticollab.microdata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ways of extracting pages stored in a local archive: a file of synthetic pages (see
+ * {@link SyntheticPages}) written one after another, as in a WARC-style dump.
+ * <ul>
+ * <li>stream: open an InputStream positioned at each page, as a crawler without the buffer entry point would</li>
+ * <li>mapped: map the archive once and parse a slice of it for each page</li>
+ * </ul>
+ * Run with "-prof gc" to compare allocation rates, e.g.
+ * <pre>gradle jmh -Pjmh.include=FileInput -Pjmh.args="-prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileInputBenchmark {
+    private static final String BASE = "http://example.org/archive/";
+
+    /**
+     * The approximate size of each page in the archive.
+     */
+    @Param({"65536", "1048576"})
+    public int pageSize;
+
+    /**
+     * The number of pages in the archive.
+     */
+    @Param({"64"})
+    public int pageCount;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private Path archive;
+    private long[] offsets;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private RDFMicrodataParser parser;
+
+    @Setup
+    public void setUp() throws IOException {
+        archive = Files.createTempFile("microdata-archive", ".html");
+        offsets = new long[pageCount + 1];
+        try (OutputStream out = Files.newOutputStream(archive)) {
+            long offset = 0;
+            for (int i = 0; i < pageCount; i++) {
+                byte[] page = SyntheticPages.generate(pageSize, i).getBytes(StandardCharsets.UTF_8);
+                out.write(page);
+                offsets[i] = offset;
+                offset += page.length;
+            }
+            offsets[pageCount] = offset;
+        }
+        channel = FileChannel.open(archive, StandardOpenOption.READ);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.STREAMING, streaming);
+        parser.setRDFHandler(new PipelineBenchmark.CountingHandler());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        mapped = null;
+        Files.deleteIfExists(archive);
+    }
+
+    @Benchmark
+    public void stream(Blackhole bh) throws IOException, RDFParseException, RDFHandlerException {
+        for (int i = 0; i < pageCount; i++) {
+            try (InputStream in = Files.newInputStream(archive)) {
+                long skip = offsets[i];
+                while (skip > 0) {
+                    skip -= in.skip(skip);
+                }
+                InputStream page = new BufferedInputStream(new BoundedInputStream(in, offsets[i + 1] - offsets[i]));
+                parser.parse(page, StandardCharsets.UTF_8, BASE + i);
+            }
+        }
+        bh.consume(((PipelineBenchmark.CountingHandler) parser.getRDFHandler()).count);
+    }
+
+    @Benchmark
+    public void mapped(Blackhole bh) throws IOException, RDFParseException, RDFHandlerException {
+        for (int i = 0; i < pageCount; i++) {
+            ByteBuffer page = mapped.duplicate();
+            page.limit((int) offsets[i + 1]).position((int) offsets[i]);
+            parser.parse(page, StandardCharsets.UTF_8, BASE + i);
+        }
+        bh.consume(((PipelineBenchmark.CountingHandler) parser.getRDFHandler()).count);
+    }
+
+    /**
+     * Reads at most a given number of bytes from another stream.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.criticollab.microdata;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each stage of extraction separately, and the whole pipeline, over several corpora:
+ * <ul>
+ * <li>w3c: the pages of the W3C microdata to RDF test suite</li>
+ * <li>schema.org: the schema.org examples from the same directory</li>
+ * <li>synthetic-1MB and synthetic-50MB: single generated pages of that size, see {@link SyntheticPages}</li>
+ * </ul>
+ * Each operation processes every page of the corpus once.  Run with "-prof gc" to see allocation rates, e.g.
+ * <pre>gradle jmh -Pjmh.include=Pipeline -Pjmh.args="-prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PipelineBenchmark {
+    private static final String FIXTURES = "/w3c-microdata-rdf-tests/";
+    private static final String SYNTHETIC_BASE = "http://example.org/synthetic.html";
+
+    @Param({"w3c", "schema.org", "synthetic-1MB", "synthetic-50MB"})
+    public String corpus;
+
+    private List<Page> pages;
+    private RDFMicrodataParser parser;
+    private RDFMicrodataParser streamingParser;
+
+    /**
+     * A page of the corpus, with its DOM and a parser that is ready to process its items.
+     */
+    static class Page {
+        final String html;
+        final byte[] bytes;
+        final String baseURI;
+        final Document document;
+        final BenchmarkParser parser = new BenchmarkParser();
+        final List<Element> topLevelItems;
+        final List<Element> itemScopes;
+        final List<Element> valueElements = new ArrayList<>();
+        final List<String[]> predicates = new ArrayList<>();
+
+        Page(String html, String baseURI) throws IOException, RDFHandlerException {
+            this.html = html;
+            this.bytes = html.getBytes(StandardCharsets.UTF_8);
+            this.baseURI = baseURI;
+            this.document = Jsoup.parse(html, baseURI);
+            parser.prepare(document);
+            topLevelItems = parser.findTopLevelItems(document);
+            itemScopes = parser.documentIndex().getItemScopes();
+            for (Element element : parser.documentIndex().getItemProperties()) {
+                if (!element.hasAttr("itemscope")) {
+                    valueElements.add(element);
+                }
+                String type = itemType(element);
+                String vocab = type == null ? null : vocabulary(type);
+                for (String name : element.attr("itemprop").split(" ")) {
+                    if (name.length() > 0) {
+                        predicates.add(new String[]{name, type, vocab});
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the first item type of the item that element is a property of, or null.
+         */
+        private static String itemType(Element element) {
+            for (Element e = element.parent(); e != null; e = e.parent()) {
+                if (e.hasAttr("itemscope")) {
+                    String type = e.attr("itemtype").split(" ")[0];
+                    return type.length() > 0 ? type : null;
+                }
+            }
+            return null;
+        }
+
+        private String vocabulary(String type) {
+            MicrodataRegistry.RegistryEntry entry = parser.getRegistry().match(type);
+            if (entry != null) {
+                return entry.getPrefixURI();
+            }
+            int index = Math.max(type.lastIndexOf('#'), type.lastIndexOf('/'));
+            return type.substring(0, index + 1);
+        }
+    }
+
+    /**
+     * Exposes the set up that parse normally does, so that the stages after Jsoup.parse can be run on
+     * their own.
+     */
+    static class BenchmarkParser extends RDFMicrodataParser {
+        private DocumentIndex index;
+
+        void prepare(Document document) throws IOException, RDFHandlerException {
+            setBaseURI(document.baseUri());
+            setRDFHandler(new CountingHandler());
+            setRegistry(MicrodataRegistryCache.getInstance().getRegistry(getParserConfig().get(REGISTRY)));
+            index = DocumentIndex.build(document);
+            startDocument(document, index);
+        }
+
+        /**
+         * Start again with an empty memory, so that every item gets a new subject.
+         */
+        void reset() throws RDFHandlerException {
+            startDocument(getDocument(), index);
+        }
+
+        DocumentIndex documentIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * Counts statements, so that creating them cannot be optimized away.
+     */
+    static class CountingHandler extends RDFHandlerBase {
+        long count;
+
+        @Override
+        public void handleStatement(Statement st) {
+            count++;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException, RDFHandlerException {
+        pages = new ArrayList<>();
+        switch (corpus) {
+            case "w3c":
+                for (int i = 1; i < 1000; i++) {
+                    addFixture(String.format("%04d.html", i));
+                }
+                break;
+            case "schema.org":
+                for (int i = 1; i < 100; i++) {
+                    addFixture("sdo_eg_md_" + i + ".html");
+                }
+                break;
+            case "synthetic-1MB":
+                pages.add(new Page(SyntheticPages.generate(1 << 20, 42), SYNTHETIC_BASE));
+                break;
+            case "synthetic-50MB":
+                pages.add(new Page(SyntheticPages.generate(50 << 20, 42), SYNTHETIC_BASE));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown corpus " + corpus);
+        }
+        if (pages.isEmpty()) {
+            throw new IllegalStateException("no pages found for " + corpus + "; are the test resources on the classpath?");
+        }
+        parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new CountingHandler());
+        streamingParser = new RDFMicrodataParser();
+        streamingParser.getParserConfig().set(RDFMicrodataParser.STREAMING, true);
+        streamingParser.setRDFHandler(new CountingHandler());
+    }
+
+    private void addFixture(String name) throws IOException, RDFHandlerException {
+        URL url = getClass().getResource(FIXTURES + name);
+        if (url == null) {
+            return;
+        }
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            pages.add(new Page(new String(bytes.toByteArray(), StandardCharsets.UTF_8), url.toString()));
+        }
+    }
+
+    @Benchmark
+    public void jsoupParse(Blackhole bh) {
+        for (Page page : pages) {
+            bh.consume(Jsoup.parse(page.html, page.baseURI));
+        }
+    }
+
+    @Benchmark
+    public void findTopLevelItems(Blackhole bh) {
+        for (Page page : pages) {
+            bh.consume(page.parser.findTopLevelItems(page.document));
+        }
+    }
+
+    /**
+     * The single pass that indexes ids and finds the top level items.
+     */
+    @Benchmark
+    public void indexDocument(Blackhole bh) {
+        for (Page page : pages) {
+            bh.consume(DocumentIndex.build(page.document).getTopLevelItems());
+        }
+    }
+
+    /**
+     * The CSS selector that was used to find top level items before the index did, for comparison.
+     */
+    @Benchmark
+    public void selectTopLevelItems(Blackhole bh) {
+        for (Page page : pages) {
+            bh.consume(page.document.select("[itemscope]:not([itemprop]:not([itemprop-reverse]))"));
+        }
+    }
+
+    @Benchmark
+    public void findItemProperties(Blackhole bh) {
+        for (Page page : pages) {
+            for (Element item : page.itemScopes) {
+                bh.consume(page.parser.findItemProperties(item));
+            }
+        }
+    }
+
+    @Benchmark
+    public void processItem(Blackhole bh) throws RDFParseException, RDFHandlerException {
+        for (Page page : pages) {
+            page.parser.reset();
+            for (Element item : page.topLevelItems) {
+                bh.consume(page.parser.processItem(item, null, null));
+            }
+        }
+    }
+
+    @Benchmark
+    public void createValue(Blackhole bh) {
+        for (Page page : pages) {
+            for (Element element : page.valueElements) {
+                try {
+                    bh.consume(page.parser.createValue(element));
+                } catch (RDFParseException e) {
+                    // some test pages deliberately have missing values
+                    bh.consume(e);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void generatePredicateURI(Blackhole bh) {
+        for (Page page : pages) {
+            for (String[] predicate : page.predicates) {
+                bh.consume(page.parser.generatePredicateURI(predicate[0], predicate[1], predicate[2]));
+            }
+        }
+    }
+
+    @Benchmark
+    public void createPredicate(Blackhole bh) throws RDFParseException {
+        for (Page page : pages) {
+            for (String[] predicate : page.predicates) {
+                bh.consume(page.parser.createPredicate(predicate[0], predicate[1], predicate[2]));
+            }
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) throws IOException, RDFParseException, RDFHandlerException {
+        for (Page page : pages) {
+            parser.parse(new ByteArrayInputStream(page.bytes), page.baseURI);
+        }
+        bh.consume(((CountingHandler) parser.getRDFHandler()).count);
+    }
+
+    @Benchmark
+    public void parseStreaming(Blackhole bh) throws IOException, RDFParseException, RDFHandlerException {
+        for (Page page : pages) {
+            streamingParser.parse(new ByteArrayInputStream(page.bytes), page.baseURI);
+        }
+        bh.consume(((CountingHandler) streamingParser.getRDFHandler()).count);
+    }
+}
@@ -0,0 +1,86 @@
+package com.criticollab.microdata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link MicrodataRegistry#match(String)} with a linear startsWith scan over the
+ * registry entries (the previous implementation), for registries of different sizes.
+ * <p>
+ * Half of the looked-up types belong to a registered vocabulary; the rest miss, which is the worst
+ * case for a linear scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryMatchBenchmark {
+    private static final int LOOKUPS = 256;
+
+    @Param({"10", "1000", "100000"})
+    public int registrySize;
+
+    private MicrodataRegistry registry;
+    private List<MicrodataRegistry.RegistryEntry> entries;
+    private String[] types;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        entries = new ArrayList<>(registrySize);
+        for (int i = 0; i < registrySize; i++) {
+            entries.add(new MicrodataRegistry.RegistryEntry(vocabulary(i)));
+        }
+        registry = new MicrodataRegistry(entries);
+        types = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (i % 2 == 0) {
+                types[i] = vocabulary(random.nextInt(registrySize)) + "Thing" + i;
+            } else {
+                types[i] = "http://unregistered" + i + ".example.org/vocab/Thing";
+            }
+        }
+    }
+
+    private static String vocabulary(int i) {
+        return "http://vocab" + i + ".example.org/ns/";
+    }
+
+    @Benchmark
+    public void prefixTrie(Blackhole bh) {
+        for (String type : types) {
+            bh.consume(registry.match(type));
+        }
+    }
+
+    @Benchmark
+    public void linearScan(Blackhole bh) {
+        for (String type : types) {
+            MicrodataRegistry.RegistryEntry found = null;
+            for (MicrodataRegistry.RegistryEntry entry : entries) {
+                if (type.startsWith(entry.getPrefixURI())) {
+                    found = entry;
+                    break;
+                }
+            }
+            bh.consume(found);
+        }
+    }
+}
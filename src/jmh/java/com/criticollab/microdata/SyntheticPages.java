@@ -0,0 +1,110 @@
+package com.criticollab.microdata;
+
+import java.util.Random;
+
+/**
+ * Generates HTML pages of a given size that resemble schema.org annotated catalogue pages: products
+ * with offers, ratings and reviews by people, an organization referenced through itemref, and plenty of
+ * markup and text that is not part of any item.  The same seed always produces the same page.
+ */
+class SyntheticPages {
+    private static final String[] WORDS = {
+            "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+            "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim"};
+    private static final String[] LANGUAGES = {"en", "en-GB", "de", "fr"};
+
+    private SyntheticPages() {
+    }
+
+    /**
+     * @param size the approximate size of the page, in characters
+     * @param seed the seed for the random choices made while generating the page
+     */
+    static String generate(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder html = new StringBuilder(size + 4096);
+        html.append("<!DOCTYPE html>\n<html lang=\"en\"><head><title>Catalogue</title>")
+                .append("<meta charset=\"utf-8\"><link rel=\"stylesheet\" href=\"/style.css\">")
+                .append("<script>var analytics = {page: 'catalogue', items: [1 < 2]};</script></head>\n")
+                .append("<body itemscope itemtype=\"http://schema.org/WebPage\">\n")
+                .append("<div id=\"seller\" itemprop=\"seller\" itemscope itemtype=\"http://schema.org/Organization\">")
+                .append("<span itemprop=\"name\">Example Shop</span>")
+                .append("<a itemprop=\"url\" href=\"/\">home</a></div>\n")
+                .append("<nav><ul>");
+        for (int i = 0; i < 20; i++) {
+            html.append("<li><a href=\"/section/").append(i).append("\">Section ").append(i).append("</a></li>");
+        }
+        html.append("</ul></nav>\n<main>\n");
+        int product = 0;
+        while (html.length() < size) {
+            appendProduct(html, random, product++);
+        }
+        html.append("</main>\n<footer><p>&copy; Example Shop &amp; friends</p></footer>\n</body></html>\n");
+        return html.toString();
+    }
+
+    private static void appendProduct(StringBuilder html, Random random, int n) {
+        html.append("<div class=\"product\" itemscope itemtype=\"http://schema.org/Product\" itemref=\"seller\"");
+        if (random.nextInt(4) == 0) {
+            html.append(" lang=\"").append(LANGUAGES[random.nextInt(LANGUAGES.length)]).append('"');
+        }
+        if (random.nextBoolean()) {
+            html.append(" itemid=\"http://example.org/products/").append(n).append('"');
+        }
+        html.append(">\n  <h2 itemprop=\"name\">Product ").append(n).append(' ');
+        appendWords(html, random, 3);
+        html.append("</h2>\n  <img itemprop=\"image\" src=\"/images/").append(n).append(".jpg\" alt=\"\">\n")
+                .append("  <div class=\"description\"><p itemprop=\"description\">");
+        appendWords(html, random, 20 + random.nextInt(40));
+        html.append(" <b>");
+        appendWords(html, random, 2);
+        html.append("</b> ");
+        appendWords(html, random, 10);
+        html.append("</p></div>\n")
+                .append("  <div itemprop=\"offers\" itemscope itemtype=\"http://schema.org/Offer\">")
+                .append("<meta itemprop=\"priceCurrency\" content=\"USD\">$<span itemprop=\"price\">")
+                .append(random.nextInt(1000)).append('.').append(10 + random.nextInt(90)).append("</span>")
+                .append(" <link itemprop=\"availability\" href=\"http://schema.org/InStock\">In stock")
+                .append(" until <time itemprop=\"priceValidUntil\" datetime=\"2015-")
+                .append(pad(1 + random.nextInt(12))).append('-').append(pad(1 + random.nextInt(28)))
+                .append("\">soon</time></div>\n")
+                .append("  <div itemprop=\"aggregateRating\" itemscope itemtype=\"http://schema.org/AggregateRating\">")
+                .append("Rated <data itemprop=\"ratingValue\" value=\"").append(1 + random.nextInt(4)).append('.')
+                .append(random.nextInt(10)).append("\">well</data> by <meta itemprop=\"reviewCount\" content=\"")
+                .append(random.nextInt(500)).append("\">many</div>\n");
+        int reviews = random.nextInt(4);
+        for (int i = 0; i < reviews; i++) {
+            html.append("  <div itemprop=\"review\" itemscope itemtype=\"http://schema.org/Review\">")
+                    .append("<span itemprop=\"author\" itemscope itemtype=\"http://schema.org/Person\">")
+                    .append("<span itemprop=\"name\">");
+            appendWords(html, random, 2);
+            html.append("</span></span> wrote on <time itemprop=\"datePublished\">2014-")
+                    .append(pad(1 + random.nextInt(12))).append('-').append(pad(1 + random.nextInt(28)))
+                    .append("</time>: <q itemprop=\"reviewBody\">");
+            appendWords(html, random, 10 + random.nextInt(30));
+            html.append("</q></div>\n");
+        }
+        html.append("  <table class=\"specs\">");
+        for (int i = 0; i < 4; i++) {
+            html.append("<tr><td>");
+            appendWords(html, random, 1);
+            html.append("</td><td>");
+            appendWords(html, random, 2);
+            html.append("</td></tr>");
+        }
+        html.append("</table>\n</div>\n");
+    }
+
+    private static void appendWords(StringBuilder html, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                html.append(' ');
+            }
+            html.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    private static String pad(int n) {
+        return n < 10 ? "0" + n : Integer.toString(n);
+    }
+}
@@ -0,0 +1,307 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * An RDFHandler that passes statements on to another handler from a separate thread, so that a parser can keep
+ * extracting while a slow sink, such as a triple store or a compressed file, is writing.
+ * <p>
+ * Statements are gathered into arrays of a fixed size, and each full array is handed to the consumer thread
+ * through a bounded queue.  When the queue is full the parsing thread waits, so memory use is bounded by
+ * {@code (queueCapacity + 2) * batchSize} statements.  Namespaces and comments are passed on in order with the
+ * statements.  {@link #endRDF} sends the last, partly filled, batch and waits until the other handler has
+ * finished.
+ * <p>
+ * If the other handler fails, the consumer stops at once, and the exception is thrown from the next call to this
+ * handler on the parsing thread, and at the latest from endRDF; statements sent after the failure are discarded.
+ * <p>
+ * The consumer waits for events until endRDF, so if parsing fails or stops for any other reason before endRDF is
+ * called, the caller must call {@link #abort}.  Otherwise the consumer thread, which may belong to a pool, stays
+ * blocked until the next document is started.
+ * <p>
+ * A handler handles one document at a time, and must only be called from one thread.
+ */
+public class BatchingRDFHandler implements RDFHandler {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(BatchingRDFHandler.class);
+
+    private final RDFHandler handler;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final Executor executor;
+
+    /**
+     * The state of the document being handled, or null between documents.
+     */
+    private Pipeline pipeline;
+    /**
+     * The pipeline of the last aborted document, whose consumer may still be delivering an event.
+     */
+    private Pipeline abortedPipeline;
+    private Statement[] batch;
+    private int batchCount;
+
+    /**
+     * Pass statements to handler from a new thread for each document, with the default batch size and queue
+     * capacity.
+     */
+    public BatchingRDFHandler(RDFHandler handler) {
+        this(handler, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_CAPACITY, null);
+    }
+
+    /**
+     * @param handler       the handler that statements are passed to
+     * @param batchSize     the number of statements handed over at a time
+     * @param queueCapacity the number of full batches that may wait for the consumer
+     * @param executor      runs the consumer for each document, or null to start a new daemon thread for each
+     *                      document.  The executor must be able to run the consumer while the parsing thread
+     *                      waits for it.
+     */
+    public BatchingRDFHandler(RDFHandler handler, int batchSize, int queueCapacity, Executor executor) {
+        if (batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("batchSize and queueCapacity must be positive");
+        }
+        this.handler = handler;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.executor = executor;
+    }
+
+    /**
+     * Something to pass to the other handler, in order, on the consumer thread.
+     */
+    private abstract static class Event {
+        abstract void deliver(RDFHandler handler) throws RDFHandlerException;
+    }
+
+    private static final class Batch extends Event {
+        final Statement[] statements;
+        final int count;
+
+        Batch(Statement[] statements, int count) {
+            this.statements = statements;
+            this.count = count;
+        }
+
+        @Override
+        void deliver(RDFHandler handler) throws RDFHandlerException {
+            for (int i = 0; i < count; i++) {
+                handler.handleStatement(statements[i]);
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the events for a document.
+     */
+    private static final Event END = new Event() {
+        @Override
+        void deliver(RDFHandler handler) throws RDFHandlerException {
+            handler.endRDF();
+        }
+    };
+
+    /**
+     * The queue and consumer for one document.
+     */
+    private final class Pipeline implements Runnable {
+        final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+        /**
+         * Arrays that the consumer has finished with, for the parsing thread to fill again.
+         */
+        final BlockingQueue<Statement[]> freeBatches = new ArrayBlockingQueue<>(queueCapacity + 1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile Throwable failure;
+        volatile boolean aborted;
+
+        @Override
+        public void run() {
+            Event event = null;
+            try {
+                handler.startRDF();
+                do {
+                    event = queue.take();
+                    if (failure == null && !aborted) {
+                        event.deliver(handler);
+                    }
+                    if (event instanceof Batch) {
+                        Statement[] statements = ((Batch) event).statements;
+                        Arrays.fill(statements, null);
+                        freeBatches.offer(statements);
+                    }
+                } while (event != END);
+            } catch (InterruptedException e) {
+                failure = e;
+            } catch (RDFHandlerException | RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                finished.countDown();
+                // make room, so that a parsing thread waiting to put an event wakes up and sees the failure
+                queue.clear();
+            }
+        }
+
+        void put(Event event) throws RDFHandlerException {
+            checkFailure();
+            if (finished.getCount() == 0) {
+                throw new RDFHandlerException("the statement handler has stopped");
+            }
+            try {
+                // if the consumer stops while this waits, it empties the queue, so this does not wait for long
+                queue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new RDFHandlerException("interrupted while waiting for the statement handler", e);
+            }
+        }
+
+        /**
+         * If the consumer has failed, let it finish and throw its exception.
+         */
+        void checkFailure() throws RDFHandlerException {
+            Throwable t = failure;
+            if (t == null) {
+                return;
+            }
+            abort();
+            if (t instanceof RDFHandlerException) {
+                throw (RDFHandlerException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RDFHandlerException(t);
+        }
+
+        /**
+         * Stop delivering events, and let the consumer finish without waiting for it.
+         */
+        void abort() {
+            aborted = true;
+            // there is always room once the consumer stops delivering, but do not block if it has already stopped
+            if (finished.getCount() > 0 && !queue.offer(END)) {
+                queue.clear();
+                queue.offer(END);
+            }
+        }
+    }
+
+    @Override
+    public void startRDF() throws RDFHandlerException {
+        abort();
+        if (abortedPipeline != null) {
+            // the other handler must not be called from two threads at once
+            try {
+                abortedPipeline.finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RDFHandlerException("interrupted while waiting for the statement handler", e);
+            }
+            abortedPipeline = null;
+        }
+        pipeline = new Pipeline();
+        batch = new Statement[batchSize];
+        batchCount = 0;
+        if (executor != null) {
+            executor.execute(pipeline);
+        } else {
+            Thread thread = new Thread(pipeline, "microdata-statement-handler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void handleStatement(Statement st) throws RDFHandlerException {
+        batch[batchCount++] = st;
+        if (batchCount == batchSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void handleNamespace(final String prefix, final String uri) throws RDFHandlerException {
+        flush();
+        pipeline.put(new Event() {
+            @Override
+            void deliver(RDFHandler handler) throws RDFHandlerException {
+                handler.handleNamespace(prefix, uri);
+            }
+        });
+    }
+
+    @Override
+    public void handleComment(final String comment) throws RDFHandlerException {
+        flush();
+        pipeline.put(new Event() {
+            @Override
+            void deliver(RDFHandler handler) throws RDFHandlerException {
+                handler.handleComment(comment);
+            }
+        });
+    }
+
+    /**
+     * Send the last batch, and wait for the other handler to finish the document.
+     */
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        Pipeline current = pipeline;
+        flush();
+        current.put(END);
+        try {
+            current.finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current.abort();
+            abortedPipeline = current;
+            throw new RDFHandlerException("interrupted while waiting for the statement handler", e);
+        } finally {
+            pipeline = null;
+            batch = null;
+        }
+        current.checkFailure();
+    }
+
+    /**
+     * Stop passing on the current document, if there is one, without waiting for the other handler.  Statements
+     * that have not been passed on yet are discarded, and endRDF is not called on the other handler.  The next
+     * call to startRDF waits until the other handler has returned from any event it was handling.
+     */
+    public void abort() {
+        if (pipeline != null) {
+            pipeline.abort();
+            abortedPipeline = pipeline;
+            pipeline = null;
+            batch = null;
+        }
+    }
+
+    /**
+     * Hand the current batch to the consumer, if it holds any statements.
+     */
+    private void flush() throws RDFHandlerException {
+        if (batchCount == 0) {
+            return;
+        }
+        Pipeline current = pipeline;
+        current.put(new Batch(batch, batchCount));
+        Statement[] free = current.freeBatches.poll();
+        batch = free != null ? free : new Statement[batchSize];
+        batchCount = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package com.criticollab.microdata;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers for reading HTML held in a {@link ByteBuffer}, such as a slice of a memory-mapped file.  The bytes are
+ * decoded directly from the buffer, rather than first being copied into a byte array on the heap.
+ */
+final class ByteBufferInput {
+    private static final Pattern CONTENT_TYPE_CHARSET = Pattern.compile("(?i)\\bcharset=\\s*(?:\"|')?([^\\s,;\"']*)");
+
+    private ByteBufferInput() {
+    }
+
+    /**
+     * Decode the remaining bytes of a buffer, without changing its position.  Malformed input is replaced, as
+     * JSoup does.
+     */
+    static String decode(ByteBuffer bytes, Charset charset) {
+        return charset.decode(bytes.duplicate()).toString();
+    }
+
+    /**
+     * If the buffer starts with a byte order mark, skip it.
+     *
+     * @return the charset given by the byte order mark, or null if there is none.
+     */
+    static Charset skipByteOrderMark(ByteBuffer bytes) {
+        int p = bytes.position();
+        if (bytes.remaining() >= 3 && (bytes.get(p) & 0xff) == 0xef && (bytes.get(p + 1) & 0xff) == 0xbb
+                && (bytes.get(p + 2) & 0xff) == 0xbf) {
+            bytes.position(p + 3);
+            return StandardCharsets.UTF_8;
+        }
+        if (bytes.remaining() >= 2) {
+            int first = bytes.get(p) & 0xff;
+            int second = bytes.get(p + 1) & 0xff;
+            if (first == 0xfe && second == 0xff) {
+                bytes.position(p + 2);
+                return StandardCharsets.UTF_16BE;
+            }
+            if (first == 0xff && second == 0xfe) {
+                bytes.position(p + 2);
+                return StandardCharsets.UTF_16LE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the charset declared by a meta element, in the same way as JSoup does when it is given bytes.
+     *
+     * @return the declared charset, or null if there is none or it is not supported.
+     */
+    static Charset declaredCharset(Document document) {
+        Element meta = document.select("meta[http-equiv=content-type], meta[charset]").first();
+        if (meta == null) {
+            return null;
+        }
+        String name;
+        if (meta.hasAttr("http-equiv")) {
+            Matcher m = CONTENT_TYPE_CHARSET.matcher(meta.attr("content"));
+            name = m.find() ? m.group(1) : null;
+        } else {
+            name = meta.attr("charset");
+        }
+        if (name == null) {
+            return null;
+        }
+        name = name.trim().replaceAll("[\"']", "");
+        try {
+            return name.length() > 0 && Charset.isSupported(name) ? Charset.forName(name) : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An InputStream that reads the remaining bytes of a buffer.
+     */
+    static final class Stream extends InputStream {
+        private final ByteBuffer bytes;
+
+        Stream(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, bytes.remaining());
+            bytes.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, bytes.remaining()));
+            bytes.position(bytes.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return bytes.remaining();
+        }
+    }
+}
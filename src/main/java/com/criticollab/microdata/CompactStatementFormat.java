@@ -0,0 +1,104 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact binary serialization for extracted statements, written by {@link CompactStatementWriter} and read
+ * by {@link CompactStatementParser}.
+ * <p>
+ * Each document is written as a header (the magic bytes "MDRB" and a version byte), a sequence of records, and
+ * an end record.  A record is a tag byte followed by its fields.  Values in statements are dictionary coded:
+ * the first time a value appears it is written in full and given the next ID, and afterwards it is written as
+ * a varint reference to that ID.  Predicates, types and repeated literals from schema.org-style pages therefore
+ * take one or two bytes each.  The dictionary belongs to the document, and is limited in size; very long
+ * literals and values seen after it is full are written in full each time.
+ * <p>
+ * A URI is split after its last '/' or '#' into a namespace and a local name, and its namespace is coded with a
+ * second dictionary in the same way, so URIs that share a namespace with an earlier URI add only a reference
+ * and their local name.  The namespace dictionary starts with the {@link #COMMON_NAMESPACES common namespaces},
+ * and a literal with the datatype xsd:string is written as a plain literal.
+ * <pre>
+ * document  = "MDRB" version record* END
+ * record    = STATEMENT value value value | CONTEXT_STATEMENT value value value value
+ *           | NAMESPACE string string | COMMENT string
+ * value     = varint(id + 1) | varint(0) kind definition
+ * kind      = URI | BNODE | LITERAL | LANGUAGE_LITERAL | TYPED_LITERAL, plus NOT_SHARED if the value is not
+ *             added to the dictionary
+ * uri       = namespace string
+ * namespace = varint(id + 1) | varint(0) string
+ * string    = varint(length in UTF-8 bytes) bytes
+ * </pre>
+ * A URI's definition is a uri; a new namespace is added to the namespace dictionary unless it is full.  A
+ * typed literal's definition is its label followed by its datatype as a value, which is given its ID first.
+ * Varints are unsigned LEB128, and never exceed {@link Integer#MAX_VALUE}.
+ */
+public final class CompactStatementFormat {
+    public static final RDFFormat FORMAT = new RDFFormat("Microdata-Compact", "application/x-microdata-compact",
+            null, "mdrb", RDFFormat.SUPPORTS_NAMESPACES, RDFFormat.SUPPORTS_CONTEXTS);
+
+    static final byte[] MAGIC = {'M', 'D', 'R', 'B'};
+    static final int VERSION = 2;
+
+    static final int END = 0;
+    static final int STATEMENT = 1;
+    static final int CONTEXT_STATEMENT = 2;
+    static final int NAMESPACE = 3;
+    static final int COMMENT = 4;
+
+    static final int URI = 1;
+    static final int BNODE = 2;
+    static final int LITERAL = 3;
+    static final int LANGUAGE_LITERAL = 4;
+    static final int TYPED_LITERAL = 5;
+    static final int NOT_SHARED = 0x80;
+
+    /**
+     * The namespaces that each namespace dictionary starts with, in order, so that their IDs are 0, 1, ....
+     * Changing this list changes the format, and needs a new version.
+     */
+    static final List<String> COMMON_NAMESPACES = Collections.unmodifiableList(Arrays.asList(
+            RDF.NAMESPACE, RDFS.NAMESPACE, XMLSchema.NAMESPACE, "http://schema.org/", "https://schema.org/"));
+
+    /**
+     * The most values a dictionary holds.
+     */
+    static final int MAX_DICTIONARY_SIZE = 1 << 20;
+    /**
+     * Literals longer than this are not added to the dictionary; they are unlikely to be repeated.
+     */
+    static final int MAX_SHARED_LITERAL_LENGTH = 256;
+
+    private CompactStatementFormat() {
+    }
+
+    /**
+     * The index just after the last '/' or '#' in uri, where its namespace ends, or 0 if it has neither.
+     */
+    static int namespaceEnd(String uri) {
+        return Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,244 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.RDFParserBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.criticollab.microdata.CompactStatementFormat.*;
+
+/**
+ * An RDFParser for the {@link CompactStatementFormat compact binary format}, which reads one document.  Blank
+ * node IDs are mapped to new blank nodes unless the parser is set to preserve them.
+ */
+public class CompactStatementParser extends RDFParserBase {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(CompactStatementParser.class);
+
+    /**
+     * The size of the buffer first allocated for a string, so that a corrupt length does not cause a huge
+     * allocation before the data runs out.
+     */
+    private static final int INITIAL_STRING_BUFFER = 1024;
+
+    private final List<Value> dictionary = new ArrayList<>();
+    private final List<String> namespaces = new ArrayList<>();
+    private InputStream in;
+
+    @Override
+    public RDFFormat getRDFFormat() {
+        return CompactStatementFormat.FORMAT;
+    }
+
+    @Override
+    public void parse(InputStream in, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        this.in = new BufferedInputStream(in);
+        namespaces.addAll(COMMON_NAMESPACES);
+        try {
+            readHeader();
+            if (rdfHandler != null) {
+                rdfHandler.startRDF();
+            }
+            for (int tag = readByte(); tag != END; tag = readByte()) {
+                readRecord(tag);
+            }
+            if (rdfHandler != null) {
+                rdfHandler.endRDF();
+            }
+        } finally {
+            this.in = null;
+            dictionary.clear();
+            namespaces.clear();
+            clear();
+        }
+    }
+
+    /**
+     * The format is binary, so it cannot be read from characters.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void parse(Reader reader, String baseURI) {
+        throw new UnsupportedOperationException("the compact statement format is binary; parse an InputStream");
+    }
+
+    private void readHeader() throws IOException, RDFParseException {
+        for (byte b : MAGIC) {
+            if (readByte() != b) {
+                reportFatalError("not compact statement data");
+            }
+        }
+        int version = readByte();
+        if (version != VERSION) {
+            reportFatalError("unsupported compact statement format version " + version);
+        }
+    }
+
+    private void readRecord(int tag) throws IOException, RDFParseException, RDFHandlerException {
+        switch (tag) {
+            case STATEMENT:
+            case CONTEXT_STATEMENT:
+                Resource subject = readResource();
+                URI predicate = readURI();
+                Value object = readValue();
+                Resource context = tag == CONTEXT_STATEMENT ? readResource() : null;
+                if (rdfHandler != null) {
+                    rdfHandler.handleStatement(context == null ? createStatement(subject, predicate, object)
+                            : createStatement(subject, predicate, object, context));
+                }
+                break;
+            case NAMESPACE:
+                String prefix = readString();
+                String namespace = readString();
+                if (rdfHandler != null) {
+                    rdfHandler.handleNamespace(prefix, namespace);
+                }
+                break;
+            case COMMENT:
+                String comment = readString();
+                if (rdfHandler != null) {
+                    rdfHandler.handleComment(comment);
+                }
+                break;
+            default:
+                reportFatalError("unknown record type " + tag);
+        }
+    }
+
+    private Resource readResource() throws IOException, RDFParseException {
+        Value value = readValue();
+        if (!(value instanceof Resource)) {
+            reportFatalError("expected a resource but found " + value);
+        }
+        return (Resource) value;
+    }
+
+    private URI readURI() throws IOException, RDFParseException {
+        Value value = readValue();
+        if (!(value instanceof URI)) {
+            reportFatalError("expected a URI but found " + value);
+        }
+        return (URI) value;
+    }
+
+    /**
+     * Read a reference to a value in the dictionary, or a value's definition.
+     */
+    private Value readValue() throws IOException, RDFParseException {
+        int reference = readVarint();
+        if (reference != 0) {
+            if (reference < 0 || reference > dictionary.size()) {
+                reportFatalError("reference to undefined value " + reference);
+            }
+            return dictionary.get(reference - 1);
+        }
+        int kind = readByte();
+        Value value;
+        switch (kind & ~NOT_SHARED) {
+            case URI:
+                value = createURI(readURIString());
+                break;
+            case BNODE:
+                value = createBNode(readString());
+                break;
+            case LITERAL:
+                value = createLiteral(readString(), null, null);
+                break;
+            case LANGUAGE_LITERAL:
+                String label = readString();
+                value = createLiteral(label, readString(), null);
+                break;
+            case TYPED_LITERAL:
+                label = readString();
+                value = createLiteral(label, null, readURI());
+                break;
+            default:
+                reportFatalError("unknown value kind " + kind);
+                return null;
+        }
+        if ((kind & NOT_SHARED) == 0) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    /**
+     * Read a URI's namespace, which may be a reference to the namespace dictionary, and its local name.
+     */
+    private String readURIString() throws IOException, RDFParseException {
+        int reference = readVarint();
+        String namespace;
+        if (reference != 0) {
+            if (reference > namespaces.size()) {
+                reportFatalError("reference to undefined namespace " + reference);
+            }
+            namespace = namespaces.get(reference - 1);
+        } else {
+            namespace = readString();
+            if (namespaces.size() < MAX_DICTIONARY_SIZE) {
+                namespaces.add(namespace);
+            }
+        }
+        return namespace + readString();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("unexpected end of compact statement data");
+        }
+        return b;
+    }
+
+    /**
+     * Read a varint, which must fit in a non-negative int.
+     */
+    private int readVarint() throws IOException, RDFParseException {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        int b = readByte();
+        if (b > 0x07) {
+            reportFatalError("malformed varint");
+        }
+        return value | b << 28;
+    }
+
+    private String readString() throws IOException, RDFParseException {
+        int length = readVarint();
+        byte[] bytes = new byte[Math.min(length, INITIAL_STRING_BUFFER)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException("unexpected end of compact statement data");
+            }
+            read += n;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
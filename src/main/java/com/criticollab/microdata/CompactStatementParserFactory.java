@@ -0,0 +1,21 @@
+package com.criticollab.microdata;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.RDFParserFactory;
+
+/**
+ * Registered with Rio, so that {@code Rio.createParser(CompactStatementFormat.FORMAT)} finds
+ * {@link CompactStatementParser}.
+ */
+public class CompactStatementParserFactory implements RDFParserFactory {
+    @Override
+    public RDFFormat getRDFFormat() {
+        return CompactStatementFormat.FORMAT;
+    }
+
+    @Override
+    public RDFParser getParser() {
+        return new CompactStatementParser();
+    }
+}
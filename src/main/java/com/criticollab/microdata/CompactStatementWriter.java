@@ -0,0 +1,191 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.helpers.RDFWriterBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.criticollab.microdata.CompactStatementFormat.*;
+
+/**
+ * An RDFWriter for the {@link CompactStatementFormat compact binary format}.  Output is buffered, and flushed
+ * by endRDF; the stream is not closed.  A writer may write several documents in turn, each with its own
+ * dictionary.
+ */
+public class CompactStatementWriter extends RDFWriterBase implements RDFWriter {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(CompactStatementWriter.class);
+
+    private final OutputStream out;
+    private final Map<Value, Integer> dictionary = new HashMap<>();
+    private final Map<String, Integer> namespaces = new HashMap<>();
+    private boolean writing;
+
+    public CompactStatementWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+    }
+
+    @Override
+    public RDFFormat getRDFFormat() {
+        return CompactStatementFormat.FORMAT;
+    }
+
+    @Override
+    public void startRDF() throws RDFHandlerException {
+        if (writing) {
+            throw new RDFHandlerException("Document writing has already started");
+        }
+        writing = true;
+        dictionary.clear();
+        namespaces.clear();
+        for (String namespace : COMMON_NAMESPACES) {
+            namespaces.put(namespace, namespaces.size());
+        }
+        try {
+            out.write(MAGIC);
+            out.write(VERSION);
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        checkWriting();
+        writing = false;
+        dictionary.clear();
+        namespaces.clear();
+        try {
+            out.write(END);
+            out.flush();
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    @Override
+    public void handleNamespace(String prefix, String uri) throws RDFHandlerException {
+        checkWriting();
+        try {
+            out.write(NAMESPACE);
+            writeString(out, prefix);
+            writeString(out, uri);
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    @Override
+    public void handleStatement(Statement st) throws RDFHandlerException {
+        checkWriting();
+        Resource context = st.getContext();
+        try {
+            out.write(context == null ? STATEMENT : CONTEXT_STATEMENT);
+            writeValue(st.getSubject());
+            writeValue(st.getPredicate());
+            writeValue(st.getObject());
+            if (context != null) {
+                writeValue(context);
+            }
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    @Override
+    public void handleComment(String comment) throws RDFHandlerException {
+        checkWriting();
+        try {
+            out.write(COMMENT);
+            writeString(out, comment);
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    private void checkWriting() throws RDFHandlerException {
+        if (!writing) {
+            throw new RDFHandlerException("Document writing has not yet started");
+        }
+    }
+
+    /**
+     * Write a reference to value if it is in the dictionary, and otherwise its definition.
+     */
+    private void writeValue(Value value) throws IOException {
+        Integer id = dictionary.get(value);
+        if (id != null) {
+            writeVarint(out, id + 1);
+            return;
+        }
+        writeVarint(out, 0);
+        boolean shared = dictionary.size() < MAX_DICTIONARY_SIZE;
+        int flag = shared ? 0 : NOT_SHARED;
+        if (value instanceof URI) {
+            out.write(URI | flag);
+            writeURI(value.stringValue());
+        } else if (value instanceof BNode) {
+            out.write(BNODE | flag);
+            writeString(out, ((BNode) value).getID());
+        } else {
+            Literal literal = (Literal) value;
+            String label = literal.getLabel();
+            if (label.length() > MAX_SHARED_LITERAL_LENGTH) {
+                shared = false;
+                flag = NOT_SHARED;
+            }
+            String language = literal.getLanguage();
+            URI datatype = literal.getDatatype();
+            if (language != null) {
+                out.write(LANGUAGE_LITERAL | flag);
+                writeString(out, label);
+                writeString(out, language);
+            } else if (datatype != null && !XMLSchema.STRING.equals(datatype)) {
+                out.write(TYPED_LITERAL | flag);
+                writeString(out, label);
+                // the datatype takes its ID before the literal does, here and in the parser
+                writeValue(datatype);
+            } else {
+                out.write(LITERAL | flag);
+                writeString(out, label);
+            }
+        }
+        if (shared) {
+            dictionary.put(value, dictionary.size());
+        }
+    }
+
+    /**
+     * Write a URI's namespace, as a reference if it is in the namespace dictionary, and then its local name.
+     */
+    private void writeURI(String uri) throws IOException {
+        int split = namespaceEnd(uri);
+        String namespace = uri.substring(0, split);
+        Integer id = namespaces.get(namespace);
+        if (id != null) {
+            writeVarint(out, id + 1);
+        } else {
+            writeVarint(out, 0);
+            writeString(out, namespace);
+            if (namespaces.size() < MAX_DICTIONARY_SIZE) {
+                namespaces.put(namespace, namespaces.size());
+            }
+        }
+        writeString(out, uri.substring(split));
+    }
+}
@@ -0,0 +1,34 @@
+package com.criticollab.microdata;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.RDFWriterFactory;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Registered with Rio, so that {@code Rio.createWriter(CompactStatementFormat.FORMAT, out)} finds
+ * {@link CompactStatementWriter}.
+ */
+public class CompactStatementWriterFactory implements RDFWriterFactory {
+    @Override
+    public RDFFormat getRDFFormat() {
+        return CompactStatementFormat.FORMAT;
+    }
+
+    @Override
+    public RDFWriter getWriter(OutputStream out) {
+        return new CompactStatementWriter(out);
+    }
+
+    /**
+     * The format is binary, so it cannot be written as characters.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public RDFWriter getWriter(Writer writer) {
+        throw new UnsupportedOperationException("the compact statement format is binary; write to an OutputStream");
+    }
+}
@@ -0,0 +1,222 @@
+package com.criticollab.microdata;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The elements of a document that item extraction needs to find, gathered in a single pass over the
+ * document: elements by id (for itemref), the top level items, and the elements with itemscope and with
+ * property names, in tree order.  Built once per parse, so that looking up an itemref or finding the top level
+ * items does not search the whole document again.
+ */
+class DocumentIndex {
+    private final Element root;
+    private final Map<String, Element> elementsById;
+    private final List<Element> itemScopes;
+    private final List<Element> topLevelItems;
+    private final List<Element> itemProperties;
+    /**
+     * For an index holding only ids, the position in the document of the root of each detached subtree.
+     */
+    private final Map<Element, Integer> subtreeOrder;
+    /**
+     * Orders elements in tree order, created the first time it is needed.
+     */
+    private Comparator<Element> treeOrder;
+
+    /**
+     * Create an index holding only ids, for use when the document is not available as a whole, but only as
+     * detached subtrees.
+     *
+     * @param elementsById a map that may continue to be updated by the caller.
+     * @param subtreeOrder the position in the document of the root of each subtree, in a map that may continue to
+     *                     be updated by the caller.  Subtrees do not overlap, so these positions and the structure
+     *                     of each subtree give the tree order.
+     */
+    DocumentIndex(Map<String, Element> elementsById, Map<Element, Integer> subtreeOrder) {
+        this.root = null;
+        this.elementsById = elementsById;
+        this.itemScopes = Collections.emptyList();
+        this.topLevelItems = Collections.emptyList();
+        this.itemProperties = Collections.emptyList();
+        this.subtreeOrder = subtreeOrder;
+    }
+
+    private DocumentIndex(Element root, Map<String, Element> elementsById, List<Element> itemScopes,
+                          List<Element> topLevelItems, List<Element> itemProperties) {
+        this.root = root;
+        this.elementsById = elementsById;
+        this.itemScopes = Collections.unmodifiableList(itemScopes);
+        this.topLevelItems = Collections.unmodifiableList(topLevelItems);
+        this.itemProperties = Collections.unmodifiableList(itemProperties);
+        this.subtreeOrder = null;
+    }
+
+    /**
+     * Index root and its descendants.
+     */
+    static DocumentIndex build(Element root) {
+        Map<String, Element> elementsById = new HashMap<>();
+        List<Element> itemScopes = new ArrayList<>();
+        List<Element> topLevelItems = new ArrayList<>();
+        List<Element> itemProperties = new ArrayList<>();
+        Deque<Element> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Element element = pending.pop();
+            if (element.hasAttr("id")) {
+                String id = element.id();
+                if (!elementsById.containsKey(id)) {
+                    elementsById.put(id, element);
+                }
+            }
+            boolean hasItemprop = element.hasAttr("itemprop");
+            boolean hasItempropReverse = element.hasAttr("itemprop-reverse");
+            if (element.hasAttr("itemscope")) {
+                itemScopes.add(element);
+                // see RDFMicrodataParser.isTopLevelItem
+                if (!hasItemprop || hasItempropReverse) {
+                    topLevelItems.add(element);
+                }
+            }
+            if (hasItemprop || hasItempropReverse) {
+                itemProperties.add(element);
+            }
+            // push children last to first, so that they are visited in tree order
+            for (int i = element.childNodeSize() - 1; i >= 0; i--) {
+                Node child = element.childNode(i);
+                if (child instanceof Element) {
+                    pending.push((Element) child);
+                }
+            }
+        }
+        return new DocumentIndex(root, elementsById, itemScopes, topLevelItems, itemProperties);
+    }
+
+    /**
+     * @return the element that was indexed, or null if this index holds only ids.
+     */
+    Element getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the first element in tree order with the given id, or null if there is none.
+     */
+    Element getElementById(String id) {
+        return elementsById.get(id);
+    }
+
+    /**
+     * @return the elements with an itemscope attribute, in tree order.
+     */
+    List<Element> getItemScopes() {
+        return itemScopes;
+    }
+
+    /**
+     * @return the top level items, in tree order.
+     */
+    List<Element> getTopLevelItems() {
+        return topLevelItems;
+    }
+
+    /**
+     * @return the elements with an itemprop or itemprop-reverse attribute, in tree order.
+     */
+    List<Element> getItemProperties() {
+        return itemProperties;
+    }
+
+    /**
+     * @return a comparator that puts elements with an itemprop or itemprop-reverse attribute in tree order.
+     */
+    synchronized Comparator<Element> getTreeOrder() {
+        if (treeOrder == null) {
+            treeOrder = subtreeOrder != null ? new SubtreeOrder(subtreeOrder) : new PropertyOrder(itemProperties);
+        }
+        return treeOrder;
+    }
+
+    /**
+     * Tree order from the position of each property element, for an index of a whole document.
+     */
+    private static final class PropertyOrder implements Comparator<Element> {
+        private final Map<Element, Integer> positions;
+
+        PropertyOrder(List<Element> itemProperties) {
+            positions = new IdentityHashMap<>(itemProperties.size() * 2);
+            for (int i = 0; i < itemProperties.size(); i++) {
+                positions.put(itemProperties.get(i), i);
+            }
+        }
+
+        @Override
+        public int compare(Element a, Element b) {
+            return Integer.compare(position(positions, a), position(positions, b));
+        }
+    }
+
+    /**
+     * Tree order of elements in detached subtrees: by the position of their roots, and then by their place in the
+     * subtree.
+     */
+    private static final class SubtreeOrder implements Comparator<Element> {
+        private final Map<Element, Integer> roots;
+
+        SubtreeOrder(Map<Element, Integer> roots) {
+            this.roots = roots;
+        }
+
+        @Override
+        public int compare(Element a, Element b) {
+            if (a == b) {
+                return 0;
+            }
+            List<Element> pathA = pathFromRoot(a);
+            List<Element> pathB = pathFromRoot(b);
+            if (pathA.get(0) != pathB.get(0)) {
+                return Integer.compare(position(roots, pathA.get(0)), position(roots, pathB.get(0)));
+            }
+            int depth = 1;
+            while (depth < pathA.size() && depth < pathB.size() && pathA.get(depth) == pathB.get(depth)) {
+                depth++;
+            }
+            // an ancestor comes before its descendants
+            if (depth == pathA.size()) {
+                return -1;
+            }
+            if (depth == pathB.size()) {
+                return 1;
+            }
+            return Integer.compare(pathA.get(depth).siblingIndex(), pathB.get(depth).siblingIndex());
+        }
+
+        private static List<Element> pathFromRoot(Element element) {
+            List<Element> path = new ArrayList<>();
+            for (Element e = element; e != null; e = e.parent()) {
+                path.add(e);
+            }
+            Collections.reverse(path);
+            return path;
+        }
+    }
+
+    /**
+     * @return the element's position, or -1 if it has none
+     */
+    private static int position(Map<Element, Integer> positions, Element element) {
+        Integer position = positions.get(element);
+        return position == null ? -1 : position;
+    }
+}
@@ -0,0 +1,516 @@
+package com.criticollab.microdata;
+
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RioSetting;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of extraction results, for pages that are fetched many times with the same content, such as
+ * mirrors and syndicated copies.
+ * <p>
+ * Results are keyed by a SHA-256 digest of the page's bytes, its base URI and charset, the
+ * {@link MicrodataRegistry#getVersion version} of the registry, and the parser's settings.  On a hit the
+ * statements are replayed to the parser's handler without the HTML being parsed; on a miss the page is parsed as
+ * usual, and its statements are stored in the {@link CompactStatementFormat compact format}:
+ * <pre>
+ * cache.parse(parser, bytes, charset, url);   // instead of parser.parse(bytes, charset, url)
+ * </pre>
+ * Results are appended to memory-mapped segment files in a directory, and an index in memory maps each key to
+ * its record.  The index is rebuilt from the segments when a cache is opened.  When a new segment would take the
+ * cache over its size limit, the least recently used segment (the one whose results were last written or read
+ * longest ago) is deleted, with every result in it.  Each record has a checksum; a record that fails it is
+ * dropped, and the page is parsed again.
+ * <p>
+ * A cache may be shared by parsers on several threads, and holds a lock on its directory so that no other cache
+ * uses it at the same time.  Replayed statements get new blank nodes, as a parse would give them, but the
+ * parser's statistics are only updated by real parses.
+ */
+public class ExtractionCache implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(ExtractionCache.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".mdc";
+    private static final String LOCK_FILE = "lock";
+    private static final int RECORD_MAGIC = 0x4d444352;
+    private static final int KEY_LENGTH = 32;
+    /**
+     * A record is its magic number, key, data length, CRC-32 of the data, and the data.  The magic number is
+     * written last, so a record that was not completely written is not seen when the segment is scanned.
+     */
+    private static final int RECORD_HEADER = 4 + KEY_LENGTH + 4 + 8;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<Key, Location> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    /**
+     * The segment that results are appended to, or null if a new one is needed.
+     */
+    private Segment current;
+    private long size;
+    /**
+     * Counts writes and reads, to order segments by when they were last used.
+     */
+    private long clock;
+    private boolean closed;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Open a cache with the default segment size, creating the directory if it does not exist.
+     *
+     * @param directory the directory holding the segment files
+     * @param maxBytes  the most space the segments may take; at least {@link #DEFAULT_SEGMENT_SIZE}
+     */
+    public ExtractionCache(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   the directory holding the segment files
+     * @param maxBytes    the most space the segments may take; at least segmentSize
+     * @param segmentSize the size of each segment file.  Results larger than a segment are not cached.
+     */
+    public ExtractionCache(Path directory, long maxBytes, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER || maxBytes < segmentSize) {
+            throw new IllegalArgumentException("segmentSize must be more than " + RECORD_HEADER
+                    + " bytes, and maxBytes at least segmentSize");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock directoryLock;
+        try {
+            directoryLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another cache in this JVM
+            directoryLock = null;
+        }
+        lock = directoryLock;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("extraction cache " + directory + " is in use");
+        }
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path path : files) {
+                    String name = path.getFileName().toString();
+                    try {
+                        int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(number, openSegment(number, path, 0));
+                    } catch (NumberFormatException e) {
+                        logger.warn("ignoring {} in extraction cache", path);
+                    }
+                }
+            }
+            // scan in the order the segments were written, so that later results replace earlier ones
+            for (Segment segment : segments.values()) {
+                scan(segment);
+                size += segment.buffer.capacity();
+            }
+            if (!segments.isEmpty()) {
+                current = segments.lastEntry().getValue();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments.values()) {
+                unmap(segment.buffer);
+            }
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+        logger.debug("opened extraction cache {} with {} results in {} segments", directory, index.size(), segments.size());
+    }
+
+    /**
+     * Extract from a page held in a buffer, replaying the cached result if there is one.
+     *
+     * @see RDFMicrodataParser#parse(ByteBuffer, Charset, String)
+     */
+    public void parse(RDFMicrodataParser parser, ByteBuffer bytes, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        Key key = key(parser, bytes, charset, baseURI);
+        RDFHandler handler = parser.getRDFHandler();
+        byte[] result = lookup(key);
+        if (result != null) {
+            hitCount.incrementAndGet();
+            bytesSaved.addAndGet(bytes.remaining());
+            CompactStatementParser replay = new CompactStatementParser();
+            replay.setRDFHandler(handler);
+            replay.parse(new ByteArrayInputStream(result), baseURI);
+            return;
+        }
+        missCount.incrementAndGet();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactStatementWriter writer = new CompactStatementWriter(out);
+        parser.setRDFHandler(handler == null ? writer : new RDFHandlerWrapper(handler, writer));
+        try {
+            parser.parse(bytes, charset, baseURI);
+        } finally {
+            parser.setRDFHandler(handler);
+        }
+        store(key, out.toByteArray());
+    }
+
+    /**
+     * Extract from a page read from a stream, which must be read in full to find its key.
+     *
+     * @param charset the charset of the page, or null to detect it
+     */
+    public void parse(RDFMicrodataParser parser, InputStream in, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        parse(parser, ByteBuffer.wrap(bytes.toByteArray()), charset, baseURI);
+    }
+
+    /**
+     * Extract from a page in a file, which is memory-mapped to find its key.
+     *
+     * @param charset the charset of the page, or null to detect it
+     * @see RDFMicrodataParser#parse(Path, Charset, String)
+     */
+    public void parse(RDFMicrodataParser parser, Path path, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("cannot map " + path + " of " + length + " bytes");
+            }
+            parse(parser, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), charset, baseURI);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the fraction of lookups that found a result, or 0 if there have been none
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long lookups = hits + missCount.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the number of bytes of HTML that did not have to be parsed, because their result was cached
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return the number of results in the cache
+     */
+    public synchronized int getResultCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the space taken by the segment files, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Write the segments to disk, unmap them, and release the directory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+        index.clear();
+        segments.clear();
+        current = null;
+        try {
+            lock.release();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    private static final class Key {
+        final byte[] digest;
+        final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final MappedByteBuffer buffer;
+        /**
+         * The offset after the last complete record.
+         */
+        int end;
+        long lastUsed;
+
+        Segment(int number, Path path, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final long checksum;
+
+        Location(Segment segment, int offset, int length, long checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    private Key key(RDFMicrodataParser parser, ByteBuffer bytes, Charset charset, String baseURI) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(bytes.duplicate());
+        updateDigest(digest, baseURI == null ? "" : baseURI);
+        updateDigest(digest, charset == null ? "" : charset.name());
+        ParserConfig config = parser.getParserConfig();
+        updateDigest(digest, MicrodataRegistryCache.getInstance().getRegistry(config.get(RDFMicrodataParser.REGISTRY)).getVersion());
+        Map<String, String> settings = new TreeMap<>();
+        for (RioSetting<?> setting : parser.getSupportedSettings()) {
+            settings.put(setting.getKey(), String.valueOf(config.get(setting)));
+        }
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            updateDigest(digest, setting.getKey());
+            updateDigest(digest, setting.getValue());
+        }
+        return new Key(digest.digest());
+    }
+
+    private static void updateDigest(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * @return a copy of the cached result for key, or null if there is none
+     */
+    private synchronized byte[] lookup(Key key) {
+        checkOpen();
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        byte[] data = new byte[location.length];
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset);
+        buffer.get(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (crc.getValue() != location.checksum) {
+            logger.warn("dropping corrupt record in {}", location.segment.path);
+            index.remove(key);
+            return null;
+        }
+        location.segment.lastUsed = ++clock;
+        return data;
+    }
+
+    private synchronized void store(Key key, byte[] data) throws IOException {
+        checkOpen();
+        int recordSize = RECORD_HEADER + data.length;
+        if (recordSize > segmentSize || index.containsKey(key)) {
+            return;
+        }
+        if (current == null || current.end + recordSize > current.buffer.capacity()) {
+            newSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Segment segment = current;
+        int offset = segment.end;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.put(key.digest);
+        buffer.putInt(data.length);
+        buffer.putLong(crc.getValue());
+        buffer.put(data);
+        buffer.putInt(offset, RECORD_MAGIC);
+        segment.end = offset + recordSize;
+        segment.lastUsed = ++clock;
+        index.put(key, new Location(segment, offset + RECORD_HEADER, data.length, crc.getValue()));
+    }
+
+    /**
+     * Start a new segment, first deleting the least recently used segments until there is room for it.
+     */
+    private void newSegment() throws IOException {
+        while (!segments.isEmpty() && size + segmentSize > maxBytes) {
+            Segment victim = null;
+            for (Segment segment : segments.values()) {
+                if (victim == null || segment.lastUsed < victim.lastUsed) {
+                    victim = segment;
+                }
+            }
+            evict(victim);
+        }
+        int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        current = openSegment(number, directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX), segmentSize);
+        segments.put(number, current);
+        size += segmentSize;
+    }
+
+    private void evict(Segment segment) {
+        Iterator<Location> it = index.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().segment == segment) {
+                it.remove();
+            }
+        }
+        segments.remove(segment.number);
+        size -= segment.buffer.capacity();
+        if (current == segment) {
+            current = null;
+        }
+        // records are only read while the cache is locked, and are copied out, so nothing uses the mapping now
+        unmap(segment.buffer);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("could not delete {}", segment.path, e);
+        }
+    }
+
+    /**
+     * Release a segment's mapping now, rather than when the buffer is collected, so that its address space is
+     * given back and, on Windows, its file can be deleted.  The buffer must not be used afterwards.  This uses
+     * the JDK's internal cleaner; if that is not available, the mapping is left for the collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("could not unmap segment; it will be released when collected", e);
+        }
+    }
+
+    /**
+     * Map a segment file.
+     *
+     * @param length the size to create the file with, or 0 to map an existing file as it is
+     */
+    private static Segment openSegment(int number, Path path, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long mapped = length > 0 ? length : Math.min(channel.size(), Integer.MAX_VALUE);
+            return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, mapped));
+        }
+    }
+
+    /**
+     * Add the complete records of a segment to the index.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int capacity = buffer.capacity();
+        int offset = 0;
+        while (offset + RECORD_HEADER <= capacity && buffer.getInt(offset) == RECORD_MAGIC) {
+            byte[] digest = new byte[KEY_LENGTH];
+            buffer.position(offset + 4);
+            buffer.get(digest);
+            int length = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (length < 0 || length > capacity - offset - RECORD_HEADER) {
+                break;
+            }
+            index.put(new Key(digest), new Location(segment, offset + RECORD_HEADER, length, checksum));
+            offset += RECORD_HEADER + length;
+        }
+        segment.end = offset;
+        segment.lastUsed = ++clock;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("extraction cache " + directory + " is closed");
+        }
+    }
+}
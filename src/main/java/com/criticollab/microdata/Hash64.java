@@ -0,0 +1,46 @@
+package com.criticollab.microdata;
+
+/**
+ * A 64 bit FNV-1a hash, with a final mix so that similar inputs give unrelated values.  Used where a
+ * fingerprint must be compact and need not be cryptographically strong.
+ */
+final class Hash64 {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    void add(int value) {
+        hash = (hash ^ value) * PRIME;
+    }
+
+    void add(String s) {
+        add(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * PRIME;
+        }
+    }
+
+    long value() {
+        return mix(hash);
+    }
+
+    /**
+     * Start again, so that the hash can be reused.
+     */
+    void reset() {
+        hash = OFFSET_BASIS;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every input bit over the whole result.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
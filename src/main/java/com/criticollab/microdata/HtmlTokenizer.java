@@ -0,0 +1,381 @@
+package com.criticollab.microdata;
+
+import org.jsoup.nodes.Attributes;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * A small, forgiving HTML tokenizer used for streaming extraction. It reads characters once from a
+ * Reader and reports start tags, end tags and runs of text.  Comments, doctypes and processing
+ * instructions are skipped.  The contents of script and style elements are returned as unparsed text;
+ * the contents of title and textarea elements have character references decoded, as in HTML.
+ * <p>
+ * This is not a full implementation of the HTML5 tokenization algorithm, but it handles the markup
+ * found on real pages well enough for microdata extraction: unquoted and valueless attributes, case
+ * insensitive names, character references, and stray '&lt;' characters.
+ */
+class HtmlTokenizer {
+    enum TokenType {START_TAG, END_TAG, TEXT, EOF}
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPos;
+    private int bufferLimit;
+    /**
+     * Characters that have been read and put back, most recent last.
+     */
+    private final char[] pushback = new char[32];
+    private int pushbackCount;
+    /**
+     * Scratch space for matching the end tag of a raw text element.
+     */
+    private final char[] lookahead = new char[16];
+
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder name = new StringBuilder();
+    private String tagName;
+    private Attributes attributes;
+    private boolean selfClosing;
+    private String textValue;
+    /**
+     * Set after the start tag of a raw text element (script, style, title, textarea) has been read.
+     */
+    private String rawTextElement;
+    /**
+     * Set after the content of a raw text element has been read; the next token is its end tag.
+     */
+    private String pendingEndTag;
+
+    HtmlTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Read the next token.
+     *
+     * @return the type of the token read, or EOF at the end of input
+     */
+    TokenType next() throws IOException {
+        if (pendingEndTag != null) {
+            tagName = pendingEndTag;
+            pendingEndTag = null;
+            return TokenType.END_TAG;
+        }
+        if (rawTextElement != null) {
+            String element = rawTextElement;
+            rawTextElement = null;
+            readRawText(element);
+            if (text.length() > 0) {
+                return emitText(element.equals("title") || element.equals("textarea"));
+            }
+            return next();
+        }
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                return text.length() > 0 ? emitText(true) : TokenType.EOF;
+            }
+            if (c != '<') {
+                text.append((char) c);
+                continue;
+            }
+            int d = read();
+            if (isAsciiLetter(d)) {
+                if (text.length() > 0) {
+                    unread(d);
+                    unread('<');
+                    return emitText(true);
+                }
+                readStartTag((char) d);
+                return TokenType.START_TAG;
+            } else if (d == '/') {
+                int e = read();
+                if (isAsciiLetter(e)) {
+                    if (text.length() > 0) {
+                        unread(e);
+                        unread('/');
+                        unread('<');
+                        return emitText(true);
+                    }
+                    readEndTag((char) e);
+                    return TokenType.END_TAG;
+                } else if (e != '>') {
+                    skipTo('>');
+                }
+            } else if (d == '!') {
+                skipDeclarationOrComment();
+            } else if (d == '?') {
+                skipTo('>');
+            } else {
+                text.append('<');
+                if (d != -1) {
+                    unread(d);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the lower-cased name of the last start or end tag read.
+     */
+    String tagName() {
+        return tagName;
+    }
+
+    /**
+     * @return the attributes of the last start tag read. A new instance is created for every tag.
+     */
+    Attributes attributes() {
+        return attributes;
+    }
+
+    /**
+     * @return true if the last start tag read ended with "/&gt;".
+     */
+    boolean isSelfClosing() {
+        return selfClosing;
+    }
+
+    /**
+     * @return the last run of text read, with character references decoded.
+     */
+    String text() {
+        return textValue;
+    }
+
+    private TokenType emitText(boolean decode) {
+        textValue = text.toString();
+        if (decode && textValue.indexOf('&') != -1) {
+            textValue = Parser.unescapeEntities(textValue, false);
+        }
+        text.setLength(0);
+        return TokenType.TEXT;
+    }
+
+    private void readStartTag(char first) throws IOException {
+        tagName = readName(first);
+        attributes = new Attributes();
+        selfClosing = false;
+        while (true) {
+            int c = skipWhitespace();
+            if (c == -1 || c == '>') {
+                break;
+            }
+            if (c == '/') {
+                int d = read();
+                if (d == '>') {
+                    selfClosing = true;
+                    break;
+                }
+                if (d != -1) {
+                    unread(d);
+                }
+                continue;
+            }
+            name.setLength(0);
+            name.append((char) c);
+            while (true) {
+                c = read();
+                if (c == -1 || c == '=' || c == '>' || c == '/' || isWhitespace(c)) {
+                    break;
+                }
+                name.append((char) c);
+            }
+            String attributeName = name.toString().toLowerCase(Locale.ENGLISH);
+            String value = "";
+            if (isWhitespace(c)) {
+                c = skipWhitespace();
+            }
+            if (c == '=') {
+                value = readAttributeValue();
+            } else if (c != -1) {
+                unread(c);
+            }
+            // as in HTML, the first occurrence of an attribute wins.
+            if (!attributes.hasKey(attributeName)) {
+                attributes.put(attributeName, value);
+            }
+        }
+        if (!selfClosing) {
+            switch (tagName) {
+                case "script":
+                case "style":
+                case "title":
+                case "textarea":
+                    rawTextElement = tagName;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private String readAttributeValue() throws IOException {
+        int c = skipWhitespace();
+        name.setLength(0);
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            while ((c = read()) != -1 && c != quote) {
+                name.append((char) c);
+            }
+        } else {
+            while (c != -1 && c != '>' && !isWhitespace(c)) {
+                name.append((char) c);
+                c = read();
+            }
+            if (c == '>') {
+                unread(c);
+            }
+        }
+        String value = name.toString();
+        if (value.indexOf('&') != -1) {
+            value = Parser.unescapeEntities(value, true);
+        }
+        return value;
+    }
+
+    private void readEndTag(char first) throws IOException {
+        tagName = readName(first);
+        skipTo('>');
+    }
+
+    private String readName(char first) throws IOException {
+        name.setLength(0);
+        name.append(first);
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '>' || c == '/' || isWhitespace(c)) {
+                unread(c);
+                break;
+            }
+            name.append((char) c);
+        }
+        return name.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Read the content of a raw text element up to (and including) its end tag.
+     */
+    private void readRawText(String element) throws IOException {
+        text.setLength(0);
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<' && matchesEndTag(element)) {
+                skipTo('>');
+                pendingEndTag = element;
+                return;
+            }
+            text.append((char) c);
+        }
+    }
+
+    /**
+     * Check whether the characters following a '&lt;' are "/element" followed by a tag delimiter.
+     * If not, the characters read are pushed back.
+     */
+    private boolean matchesEndTag(String element) throws IOException {
+        int length = element.length() + 2;
+        char[] read = lookahead;
+        int count = 0;
+        boolean matches = true;
+        while (count < length) {
+            int c = read();
+            if (c == -1) {
+                matches = false;
+                break;
+            }
+            read[count++] = (char) c;
+            if (count == 1) {
+                matches = c == '/';
+            } else if (count <= element.length() + 1) {
+                matches = Character.toLowerCase((char) c) == element.charAt(count - 2);
+            } else {
+                matches = c == '>' || c == '/' || isWhitespace(c);
+            }
+            if (!matches) {
+                break;
+            }
+        }
+        if (matches) {
+            unread(read[count - 1]);
+            return true;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            unread(read[i]);
+        }
+        return false;
+    }
+
+    private void skipDeclarationOrComment() throws IOException {
+        int c = read();
+        if (c == '-') {
+            int d = read();
+            if (d == '-') {
+                // comment: skip to "-->"
+                int dashes = 0;
+                while ((c = read()) != -1) {
+                    if (c == '>' && dashes >= 2) {
+                        return;
+                    }
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+            if (d != -1) {
+                unread(d);
+            }
+        } else if (c != -1) {
+            unread(c);
+        }
+        // doctype, CDATA section or bogus comment
+        skipTo('>');
+    }
+
+    private void skipTo(char end) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != end) {
+            // skip
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = read()) != -1 && isWhitespace(c)) {
+            // skip
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pushbackCount > 0) {
+            return pushback[--pushbackCount];
+        }
+        if (bufferPos == bufferLimit) {
+            int n = reader.read(buffer, 0, buffer.length);
+            if (n <= 0) {
+                return -1;
+            }
+            bufferPos = 0;
+            bufferLimit = n;
+        }
+        return buffer[bufferPos++];
+    }
+
+    private void unread(int c) {
+        pushback[pushbackCount++] = (char) c;
+    }
+
+    static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
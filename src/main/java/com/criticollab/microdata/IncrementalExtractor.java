@@ -0,0 +1,463 @@
+package com.criticollab.microdata;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts microdata from pages that are fetched again and again, evaluating only the items that have changed.
+ * <p>
+ * Each top level item is given a fingerprint: a hash of the parts of its subtree that extraction reads (tag
+ * names, the microdata and value attributes, and text), of the subtrees its itemrefs point to, of the
+ * languages those subtrees inherit, and of the document's base URI.  The statements generated for each item are
+ * kept with its fingerprint in a {@link Snapshot}.  When the page is extracted again with that snapshot, an item
+ * whose fingerprint has not changed has its statements replayed instead of being evaluated, and the
+ * {@link Result} lists the statements that were added and removed.
+ * <pre>
+ * IncrementalExtractor.Result result = extractor.extract(in, url, yesterday.get(url), handler);
+ * yesterday.put(url, result.getSnapshot());
+ * </pre>
+ * An item that shares a nested item with another top level item, through itemref or because it is also the
+ * value of a reverse property, is always evaluated, since the subject of the shared item is chosen by whichever
+ * is processed first.  Replayed statements keep the blank nodes they were generated with, and evaluated items get
+ * new ones, so an item without an itemid that has changed at all shows all of its statements as removed and
+ * added.  A snapshot is only valid with the parser settings and registry that produced it; the parallel and
+ * streaming settings are not used.
+ * <p>
+ * With {@link RDFMicrodataParser#DEDUPLICATE} set, each item's statements are still kept in full, so that a
+ * statement it shares with another item is replayed even if that item changes; repeats are dropped from the
+ * statements passed to the handler, replayed and evaluated alike.
+ * <p>
+ * An extractor holds a parser, and must only be used by one thread at a time.
+ */
+public class IncrementalExtractor {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(IncrementalExtractor.class);
+
+    /**
+     * The attributes that item evaluation reads.  Other attributes, such as class and style, do not change an
+     * item's fingerprint.
+     */
+    private static final String[] FINGERPRINT_ATTRIBUTES = {"itemscope", "itemtype", "itemid", "itemprop",
+            "itemprop-reverse", "itemref", "lang", "href", "src", "data", "value", "content", "datetime"};
+    private static final int ITEM = 1;
+    private static final int REPEATED_ITEM = 2;
+    private static final int REFERENCE = 3;
+    private static final int MISSING_REFERENCE = 4;
+    private static final int ELEMENT = 5;
+    private static final int TEXT = 6;
+
+    private final RDFMicrodataParser parser;
+    /**
+     * Drops repeated statements before they reach the handler, if the parser is set to; reused between pages.
+     */
+    private StatementDeduplicator deduplicator;
+
+    public IncrementalExtractor() {
+        this(new RDFMicrodataParser());
+    }
+
+    /**
+     * @param parser the parser used to evaluate items, configured as it should be for every extraction
+     */
+    public IncrementalExtractor(RDFMicrodataParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * The fingerprints of the top level items of a page, in document order, with the statements generated for
+     * each.
+     */
+    public static final class Snapshot {
+        private final long[] fingerprints;
+        private final List<List<Statement>> itemStatements;
+        private final Map<Long, Integer> positions;
+
+        Snapshot(long[] fingerprints, List<List<Statement>> itemStatements) {
+            this.fingerprints = fingerprints;
+            this.itemStatements = itemStatements;
+            positions = new HashMap<>(fingerprints.length * 2);
+            for (int i = 0; i < fingerprints.length; i++) {
+                positions.put(fingerprints[i], i);
+            }
+        }
+
+        public int getItemCount() {
+            return fingerprints.length;
+        }
+
+        /**
+         * @return the fingerprint of the i'th top level item
+         */
+        public long getFingerprint(int i) {
+            return fingerprints[i];
+        }
+
+        /**
+         * @return the statements generated for the i'th top level item
+         */
+        public List<Statement> getItemStatements(int i) {
+            return Collections.unmodifiableList(itemStatements.get(i));
+        }
+
+        /**
+         * @return every statement of the page, in the order they were handled
+         */
+        public List<Statement> getStatements() {
+            List<Statement> statements = new ArrayList<>();
+            for (List<Statement> item : itemStatements) {
+                statements.addAll(item);
+            }
+            return statements;
+        }
+
+        /**
+         * @return the position of the item with the given fingerprint, or -1
+         */
+        int indexOf(long fingerprint) {
+            Integer position = positions.get(fingerprint);
+            return position == null ? -1 : position;
+        }
+    }
+
+    /**
+     * The outcome of extracting a page: its new snapshot, and how it differs from the previous one.
+     */
+    public static final class Result {
+        private final Snapshot snapshot;
+        private final List<Statement> added;
+        private final List<Statement> removed;
+        private final int replayedItemCount;
+
+        Result(Snapshot snapshot, List<Statement> added, List<Statement> removed, int replayedItemCount) {
+            this.snapshot = snapshot;
+            this.added = added;
+            this.removed = removed;
+            this.replayedItemCount = replayedItemCount;
+        }
+
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @return the statements that were not in the previous snapshot, or every statement if there was none
+         */
+        public List<Statement> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return the statements of the previous snapshot that are no longer generated
+         */
+        public List<Statement> getRemoved() {
+            return removed;
+        }
+
+        public int getReplayedItemCount() {
+            return replayedItemCount;
+        }
+
+        public int getEvaluatedItemCount() {
+            return snapshot.getItemCount() - replayedItemCount;
+        }
+    }
+
+    /**
+     * Parse a page and extract its items, detecting its charset as {@link RDFMicrodataParser#parse} does.
+     *
+     * @see #extract(Document, Snapshot, RDFHandler)
+     */
+    public Result extract(InputStream in, String baseURI, Snapshot previous, RDFHandler handler) throws IOException, RDFParseException, RDFHandlerException {
+        return extract(Jsoup.parse(in, null, baseURI), previous, handler);
+    }
+
+    /**
+     * Extract the items of a page, replaying the statements of items that have not changed since the previous
+     * snapshot.
+     *
+     * @param document the page
+     * @param previous the snapshot of the last extraction of this page, or null
+     * @param handler  the handler that receives every statement of the page, as a full extraction would
+     *                 generate them, or null if only the result is wanted
+     * @return the new snapshot, and the statements added and removed since the previous one
+     */
+    public Result extract(Document document, Snapshot previous, RDFHandler handler) throws IOException, RDFParseException, RDFHandlerException {
+        if (handler == null) {
+            handler = new RDFHandlerBase();
+        }
+        Recorder recorder = new Recorder(handler, startDeduplicator());
+        parser.setRDFHandler(recorder);
+        try {
+            DocumentIndex index = parser.startDocument(document);
+            List<Element> items = index.getTopLevelItems();
+            long[] fingerprints = new long[items.size()];
+            boolean[] shared = fingerprint(document, index, items, fingerprints);
+            boolean[] replayed = new boolean[previous == null ? 0 : previous.getItemCount()];
+            int replayedCount = 0;
+            List<List<Statement>> itemStatements = new ArrayList<>(items.size());
+            List<Statement> added = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                int old = previous == null || shared[i] ? -1 : previous.indexOf(fingerprints[i]);
+                List<Statement> statements;
+                if (old >= 0) {
+                    statements = previous.itemStatements.get(old);
+                    for (Statement st : statements) {
+                        recorder.forward(st);
+                    }
+                    replayed[old] = true;
+                    replayedCount++;
+                } else {
+                    statements = new ArrayList<>();
+                    recorder.statements = statements;
+                    parser.processTopLevelItem(items.get(i));
+                    recorder.statements = null;
+                    added.addAll(statements);
+                }
+                itemStatements.add(statements);
+            }
+            parser.endDocument();
+            List<Statement> removed = new ArrayList<>();
+            for (int i = 0; i < replayed.length; i++) {
+                if (!replayed[i]) {
+                    removed.addAll(previous.itemStatements.get(i));
+                }
+            }
+            Snapshot snapshot = new Snapshot(fingerprints, itemStatements);
+            // a statement may be generated by several items, so compare with the whole of each page
+            return new Result(snapshot,
+                    difference(added, previous == null ? Collections.<Statement>emptyList() : previous.getStatements()),
+                    difference(removed, snapshot.getStatements()), replayedCount);
+        } finally {
+            parser.clear();
+            parser.setRDFHandler(null);
+        }
+    }
+
+    /**
+     * @return an empty deduplicator with the parser's limit, or null if the parser does not deduplicate
+     */
+    private StatementDeduplicator startDeduplicator() {
+        if (!parser.getParserConfig().get(RDFMicrodataParser.DEDUPLICATE)) {
+            return null;
+        }
+        int limit = parser.getParserConfig().get(RDFMicrodataParser.DEDUPLICATION_LIMIT);
+        if (deduplicator == null || deduplicator.getLimit() != limit) {
+            deduplicator = new StatementDeduplicator(limit);
+        } else {
+            deduplicator.clear();
+        }
+        return deduplicator;
+    }
+
+    /**
+     * @return the distinct statements of a that are not in b
+     */
+    private static List<Statement> difference(List<Statement> a, List<Statement> b) {
+        Set<Statement> result = new LinkedHashSet<>(a);
+        result.removeAll(new HashSet<>(b));
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Passes statements on, keeping those of the item being evaluated.
+     */
+    private static final class Recorder extends RDFHandlerWrapper {
+        private final StatementDeduplicator deduplicator;
+        List<Statement> statements;
+
+        /**
+         * @param deduplicator drops statements already passed on for the page, or null to pass on every one
+         */
+        Recorder(RDFHandler handler, StatementDeduplicator deduplicator) {
+            super(handler);
+            this.deduplicator = deduplicator;
+        }
+
+        @Override
+        public void handleStatement(Statement st) throws RDFHandlerException {
+            if (statements != null) {
+                statements.add(st);
+            }
+            forward(st);
+        }
+
+        /**
+         * Pass a statement on, unless it is a repeat that should be dropped.
+         */
+        void forward(Statement st) throws RDFHandlerException {
+            if (deduplicator == null || deduplicator.add(st)) {
+                super.handleStatement(st);
+            }
+        }
+    }
+
+    /**
+     * Fingerprint each top level item.  Items with identical content are told apart by their order of
+     * appearance, so that each keeps its own statements.
+     *
+     * @param fingerprints receives the fingerprint of each item
+     * @return for each item, whether it shares a nested item with another top level item
+     */
+    static boolean[] fingerprint(Document document, DocumentIndex index, List<Element> items, long[] fingerprints) {
+        boolean[] shared = new boolean[items.size()];
+        Map<Element, Integer> owners = new IdentityHashMap<>();
+        Map<Long, Integer> occurrences = new HashMap<>();
+        Set<Element> expanded = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        Deque<Element> nestedItems = new ArrayDeque<>();
+        Deque<Element> pending = new ArrayDeque<>();
+        TokenCursor ids = new TokenCursor();
+        for (int i = 0; i < items.size(); i++) {
+            Hash64 hash = new Hash64();
+            hash.add(document.baseUri());
+            Element root = items.get(i);
+            hash.add(inheritedLang(root));
+            expanded.clear();
+            nestedItems.push(root);
+            while (!nestedItems.isEmpty()) {
+                Element item = nestedItems.pop();
+                if (!expanded.add(item)) {
+                    hash.add(REPEATED_ITEM);
+                    continue;
+                }
+                Integer owner = owners.put(item, i);
+                if (owner != null && owner != i) {
+                    shared[owner] = true;
+                    shared[i] = true;
+                }
+                hash.add(ITEM);
+                addElement(hash, item);
+                // walk the subtrees that findItemProperties searches, in the same order
+                if (item.hasAttr("itemref")) {
+                    ids.reset(item.attr("itemref"));
+                    while (ids.next()) {
+                        Element target = index.getElementById(ids.token());
+                        if (target == null) {
+                            hash.add(MISSING_REFERENCE);
+                        } else {
+                            hash.add(REFERENCE);
+                            hash.add(inheritedLang(target));
+                            pending.push(target);
+                            walkProperties(hash, pending, nestedItems);
+                        }
+                    }
+                }
+                pushChildren(item, pending);
+                walkProperties(hash, pending, nestedItems);
+            }
+            long fingerprint = hash.value();
+            Integer count = occurrences.get(fingerprint);
+            occurrences.put(fingerprint, count == null ? 1 : count + 1);
+            fingerprints[i] = count == null ? fingerprint : Hash64.mix(fingerprint + count * 0x9E3779B97F4A7C15L);
+        }
+        return shared;
+    }
+
+    /**
+     * Hash the elements on pending and their descendants, stopping at nested items, which are added to
+     * nestedItems.  The text of property elements is hashed in full, since their values may include it.
+     */
+    private static void walkProperties(Hash64 hash, Deque<Element> pending, Deque<Element> nestedItems) {
+        while (!pending.isEmpty()) {
+            Element current = pending.pop();
+            addElement(hash, current);
+            boolean property = TokenCursor.hasTokens(current.attr("itemprop"))
+                    || TokenCursor.hasTokens(current.attr("itemprop-reverse"));
+            if (current.hasAttr("itemscope")) {
+                if (property) {
+                    nestedItems.push(current);
+                }
+            } else {
+                if (property) {
+                    addText(hash, current);
+                }
+                pushChildren(current, pending);
+            }
+        }
+    }
+
+    /**
+     * Hash an element's name, the attributes that extraction reads, and the shape of its children.
+     */
+    private static void addElement(Hash64 hash, Element element) {
+        hash.add(ELEMENT);
+        hash.add(element.nodeName());
+        for (String key : FINGERPRINT_ATTRIBUTES) {
+            if (element.hasAttr(key)) {
+                hash.add(key);
+                hash.add(element.attr(key));
+            }
+        }
+        for (Node child : element.childNodes()) {
+            if (child instanceof Element) {
+                hash.add(ELEMENT);
+            } else if (child instanceof TextNode) {
+                hash.add(TEXT);
+                hash.add(((TextNode) child).getWholeText());
+            }
+        }
+    }
+
+    /**
+     * Hash the text of every descendant of element, as its text content would include it.
+     */
+    private static void addText(Hash64 hash, Element element) {
+        Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(element);
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            if (node instanceof TextNode) {
+                hash.add(TEXT);
+                hash.add(((TextNode) node).getWholeText());
+            }
+            for (int i = node.childNodeSize() - 1; i >= 0; i--) {
+                nodes.push(node.childNode(i));
+            }
+        }
+    }
+
+    private static void pushChildren(Element element, Deque<Element> pending) {
+        for (int i = element.childNodeSize() - 1; i >= 0; i--) {
+            Node child = element.childNode(i);
+            if (child instanceof Element) {
+                pending.push((Element) child);
+            }
+        }
+    }
+
+    /**
+     * @return the language an element inherits from its ancestors, or the empty string
+     */
+    private static String inheritedLang(Element element) {
+        for (Element e = element.parent(); e != null; e = e.parent()) {
+            if (e.hasAttr("lang")) {
+                return e.attr("lang");
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,174 @@
+package com.criticollab.microdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link ParseMetricsSink} that aggregates the statistics of every parse it is given into totals and
+ * power-of-two histograms, and publishes them as an MBean.  The shared instance is registered with the platform
+ * MBean server as {@value #OBJECT_NAME} when it is first used:
+ * <pre>parser.setMetricsSink(JmxParseMetrics.getInstance());</pre>
+ * Recording a parse takes a few atomic increments and does not lock.
+ */
+public class JmxParseMetrics implements ParseMetricsSink, JmxParseMetricsMBean {
+    public static final String OBJECT_NAME = "com.criticollab.microdata:type=ParseMetrics";
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(JmxParseMetrics.class);
+
+    private final AtomicLong parseCount = new AtomicLong();
+    private final AtomicLong itemCount = new AtomicLong();
+    private final AtomicLong statementCount = new AtomicLong();
+    private final AtomicLong itemrefCount = new AtomicLong();
+    private final AtomicLong registryLookupCount = new AtomicLong();
+    private final Histogram htmlParseNanos = new Histogram();
+    private final Histogram itemDiscoveryNanos = new Histogram();
+    private final Histogram itemProcessingNanos = new Histogram();
+    private final Histogram statementsPerParse = new Histogram();
+    private final Histogram maxItemDepth = new Histogram();
+
+    /**
+     * Create metrics that are not registered with JMX, for instance to aggregate the parses of one batch.
+     */
+    public JmxParseMetrics() {
+    }
+
+    /**
+     * @return the metrics shared by every parser in this JVM that is given them, registering them with the
+     * platform MBean server if this is the first call.
+     */
+    public static JmxParseMetrics getInstance() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Holder for the shared instance, created and registered on first use.
+     */
+    private static final class Shared {
+        static final JmxParseMetrics INSTANCE = new JmxParseMetrics();
+
+        static {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                logger.warn("could not register {}", OBJECT_NAME, e);
+            }
+        }
+    }
+
+    @Override
+    public void record(ParseStats stats) {
+        parseCount.incrementAndGet();
+        itemCount.addAndGet(stats.getItemCount());
+        statementCount.addAndGet(stats.getStatementCount());
+        itemrefCount.addAndGet(stats.getItemrefCount());
+        registryLookupCount.addAndGet(stats.getRegistryLookupCount());
+        htmlParseNanos.add(stats.getHtmlParseNanos());
+        itemDiscoveryNanos.add(stats.getItemDiscoveryNanos());
+        itemProcessingNanos.add(stats.getItemProcessingNanos());
+        statementsPerParse.add(stats.getStatementCount());
+        maxItemDepth.add(stats.getMaxItemDepth());
+    }
+
+    @Override
+    public long getParseCount() {
+        return parseCount.get();
+    }
+
+    @Override
+    public long getItemCount() {
+        return itemCount.get();
+    }
+
+    @Override
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    @Override
+    public long getItemrefCount() {
+        return itemrefCount.get();
+    }
+
+    @Override
+    public long getRegistryLookupCount() {
+        return registryLookupCount.get();
+    }
+
+    @Override
+    public long[] getHtmlParseNanosHistogram() {
+        return htmlParseNanos.snapshot();
+    }
+
+    @Override
+    public long[] getItemDiscoveryNanosHistogram() {
+        return itemDiscoveryNanos.snapshot();
+    }
+
+    @Override
+    public long[] getItemProcessingNanosHistogram() {
+        return itemProcessingNanos.snapshot();
+    }
+
+    @Override
+    public long[] getStatementsPerParseHistogram() {
+        return statementsPerParse.snapshot();
+    }
+
+    @Override
+    public long[] getMaxItemDepthHistogram() {
+        return maxItemDepth.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        parseCount.set(0);
+        itemCount.set(0);
+        statementCount.set(0);
+        itemrefCount.set(0);
+        registryLookupCount.set(0);
+        htmlParseNanos.reset();
+        itemDiscoveryNanos.reset();
+        itemProcessingNanos.reset();
+        statementsPerParse.reset();
+        maxItemDepth.reset();
+    }
+
+    /**
+     * Counts non-negative values in buckets whose bounds are powers of two.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void add(long value) {
+            buckets.incrementAndGet(bucket(value));
+        }
+
+        /**
+         * @return the bucket holding value: 0 for values less than 1, otherwise one more than the position of
+         * the highest bit set, capped at 63.
+         */
+        static int bucket(long value) {
+            return value <= 0 ? 0 : Math.min(63, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+    }
+}
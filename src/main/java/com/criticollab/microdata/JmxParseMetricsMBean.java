@@ -0,0 +1,32 @@
+package com.criticollab.microdata;
+
+/**
+ * The management interface of {@link JmxParseMetrics}.  Histograms are arrays of counts in which element i
+ * counts the values v with 2<sup>i-1</sup> &lt;= v &lt; 2<sup>i</sup>, and element 0 counts zeros.
+ */
+public interface JmxParseMetricsMBean {
+    long getParseCount();
+
+    long getItemCount();
+
+    long getStatementCount();
+
+    long getItemrefCount();
+
+    long getRegistryLookupCount();
+
+    long[] getHtmlParseNanosHistogram();
+
+    long[] getItemDiscoveryNanosHistogram();
+
+    long[] getItemProcessingNanosHistogram();
+
+    long[] getStatementsPerParseHistogram();
+
+    long[] getMaxItemDepthHistogram();
+
+    /**
+     * Set every count back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,169 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.datatypes.XMLDatatypeUtil;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+/**
+ * Chooses the datatype of literals made from time, data and meter elements.  The value is scanned once to find
+ * which of the lexical forms it could have; only the validator for that form is then run, instead of trying
+ * each validator in turn.  Values that cannot have any of the forms, such as most human-readable times, are
+ * rejected by the scan alone.
+ * <p>
+ * The scan only rules forms out, and the final decision is always made by {@code XMLDatatypeUtil}, so the
+ * result is the same as trying the validators in the order given by the microdata-to-rdf spec.  A validator that
+ * throws, as isValidDouble does for an exponent too large for an int, is taken to reject the value.
+ */
+final class LiteralDatatypes {
+    private LiteralDatatypes() {
+    }
+
+    /**
+     * @return the datatype of the value of a time element: xsd:date, xsd:time, xsd:dateTime, xsd:gYearMonth,
+     * xsd:gYear or xsd:duration, or null if it has none of those forms.
+     */
+    static URI timeDatatype(String value) {
+        int start = 0;
+        int end = value.length();
+        // validators may trim any control character or space, so the scan does too
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+        boolean duration = false;
+        boolean dateTime = false;
+        int colons = 0;
+        int dashes = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9' || c <= ' ') {
+                continue;
+            }
+            switch (c) {
+                case '-':
+                    // a leading '-' is the sign of the year or duration, not a separator
+                    if (i > start) {
+                        dashes++;
+                    }
+                    break;
+                case ':':
+                    colons++;
+                    break;
+                case 'T':
+                    dateTime = true;
+                    break;
+                case 'P':
+                case 'Y':
+                case 'M':
+                case 'D':
+                case 'H':
+                case 'S':
+                    duration = true;
+                    break;
+                case '+':
+                case '.':
+                case 'Z':
+                    break;
+                default:
+                    return null;
+            }
+        }
+        // only a duration has designators, and it may also have a 'T'
+        if (duration) {
+            return isValid(value, XMLSchema.DURATION) ? XMLSchema.DURATION : null;
+        }
+        if (dateTime) {
+            return isValid(value, XMLSchema.DATETIME) ? XMLSchema.DATETIME : null;
+        }
+        // a time starts with two digits of hours; the forms with years start with a sign or four digits
+        if (end - start > 2 && value.charAt(start + 2) == ':') {
+            return isValid(value, XMLSchema.TIME) ? XMLSchema.TIME : null;
+        }
+        if (colons > 0) {
+            // the colon belongs to a time zone offset, whose sign is not a date separator
+            if (colons > 1 || end - start < 6) {
+                return null;
+            }
+            if (value.charAt(end - 6) == '-') {
+                dashes--;
+            }
+        }
+        switch (dashes) {
+            case 2:
+                return isValid(value, XMLSchema.DATE) ? XMLSchema.DATE : null;
+            case 1:
+                return isValid(value, XMLSchema.GYEARMONTH) ? XMLSchema.GYEARMONTH : null;
+            case 0:
+                return isValid(value, XMLSchema.GYEAR) ? XMLSchema.GYEAR : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the datatype of the value of a data or meter element: xsd:integer or xsd:double, or null if it
+     * has neither form.
+     */
+    static URI numberDatatype(String value) {
+        int length = value.length();
+        int i = 0;
+        if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+            i++;
+        }
+        int digitsStart = i;
+        while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+            i++;
+        }
+        if (i == length) {
+            // an optional sign and digits, with no whitespace to collapse, is an integer of any size
+            if (i > digitsStart) {
+                return XMLSchema.INTEGER;
+            }
+            return null;
+        }
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c <= ' ') {
+                // whitespace is collapsed by the validators, so leave the decision to them
+                if (isValid(value, XMLSchema.INTEGER)) {
+                    return XMLSchema.INTEGER;
+                }
+                break;
+            }
+            switch (c) {
+                case '+':
+                case '-':
+                case '.':
+                case 'e':
+                case 'E':
+                case 'I':
+                case 'N':
+                case 'F':
+                case 'a':
+                    break;
+                default:
+                    if (c < '0' || c > '9') {
+                        return null;
+                    }
+                    break;
+            }
+        }
+        return isValid(value, XMLSchema.DOUBLE) ? XMLSchema.DOUBLE : null;
+    }
+
+    /**
+     * @return true if value is a valid lexical form of datatype, and false if it is not or the validator fails
+     */
+    private static boolean isValid(String value, URI datatype) {
+        try {
+            return XMLDatatypeUtil.isValidValue(value, datatype);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts microdata from many documents using a fixed number of worker threads.
+ * <p>
+ * Parsers are created once per worker and reused for every document, so registries, caches and scratch
+ * buffers are not rebuilt for each page.  Documents are taken from the supplied iterator only when there
+ * is room for them: at most {@code threads + queueCapacity} documents are open at any time, and the thread
+ * calling {@link #extract} blocks until a worker is ready.  A document that fails to parse is reported to the
+ * {@link Listener} and does not affect the rest of the batch.
+ * <p>
+ * Each document's input stream is closed once the document has been processed.
+ */
+public class MicrodataBatchExtractor implements Closeable {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(MicrodataBatchExtractor.class);
+    private static final AtomicInteger extractorCount = new AtomicInteger();
+
+    private final ExecutorService workers;
+    private final BlockingQueue<RDFMicrodataParser> parsers;
+    private final int capacity;
+    private final ParserConfig parserConfig;
+
+    /**
+     * A document to be extracted.
+     */
+    public static class Source {
+        private final InputStream in;
+        private final String baseURI;
+        private final Charset charset;
+
+        public Source(InputStream in, String baseURI) {
+            this(in, baseURI, null);
+        }
+
+        /**
+         * @param charset the charset of the document, if known (for instance from its Content-Type), or null
+         *                to detect it from the document.
+         */
+        public Source(InputStream in, String baseURI, Charset charset) {
+            this.in = in;
+            this.baseURI = baseURI;
+            this.charset = charset;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        @Override
+        public String toString() {
+            return "Source{" + baseURI + '}';
+        }
+    }
+
+    /**
+     * Receives the output of a batch.  Methods are called from worker threads, possibly concurrently for
+     * different documents, but never concurrently for the same document.
+     */
+    public interface Listener {
+        /**
+         * @return the handler that should receive the statements extracted from source.
+         */
+        RDFHandler getHandler(Source source);
+
+        /**
+         * Called once the document has been parsed.  If this throws, the document is counted as failed, but
+         * {@link #documentFailed} is not called for it.
+         */
+        void documentCompleted(Source source) throws RDFHandlerException;
+
+        /**
+         * Called instead of {@link #documentCompleted} if the document could not be read or parsed, or if its
+         * handler failed.  The handler may have received some of the document's statements.
+         */
+        void documentFailed(Source source, Exception e);
+    }
+
+    /**
+     * Counts of the documents in a batch.
+     */
+    public static class Result {
+        private final int completed;
+        private final int failed;
+
+        Result(int completed, int failed) {
+            this.completed = completed;
+            this.failed = failed;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{completed=" + completed + ", failed=" + failed + '}';
+        }
+    }
+
+    /**
+     * A listener that sends the statements of every successfully parsed document to a single handler.
+     * Each document's statements are collected, then passed on together, so statements from different
+     * documents are not interleaved and a document that fails midway contributes nothing.  The caller is
+     * responsible for calling startRDF and endRDF on the shared handler.
+     */
+    public static class SharedHandlerListener implements Listener {
+        private final RDFHandler handler;
+        private final ThreadLocal<List<Statement>> buffers = new ThreadLocal<List<Statement>>() {
+            @Override
+            protected List<Statement> initialValue() {
+                return new ArrayList<>();
+            }
+        };
+
+        public SharedHandlerListener(RDFHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public RDFHandler getHandler(Source source) {
+            List<Statement> buffer = buffers.get();
+            buffer.clear();
+            return new StatementCollector(buffer);
+        }
+
+        @Override
+        public void documentCompleted(Source source) throws RDFHandlerException {
+            List<Statement> buffer = buffers.get();
+            try {
+                synchronized (handler) {
+                    for (Statement statement : buffer) {
+                        handler.handleStatement(statement);
+                    }
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        @Override
+        public void documentFailed(Source source, Exception e) {
+            buffers.get().clear();
+            logger.warn("Could not extract {}: {}", source.getBaseURI(), e.toString());
+        }
+    }
+
+    /**
+     * @param threads       the number of worker threads
+     * @param queueCapacity the number of documents that may wait for a worker
+     * @param parserConfig  the configuration used by every parser
+     */
+    public MicrodataBatchExtractor(int threads, int queueCapacity, ParserConfig parserConfig) {
+        if (threads < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("threads must be positive and queueCapacity non-negative");
+        }
+        final int extractorNumber = extractorCount.incrementAndGet();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "microdata-batch-" + extractorNumber + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.parsers = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            RDFMicrodataParser parser = new RDFMicrodataParser();
+            parser.setParserConfig(parserConfig);
+            parsers.add(parser);
+        }
+        this.capacity = threads + queueCapacity;
+        this.parserConfig = parserConfig;
+    }
+
+    public MicrodataBatchExtractor(int threads, int queueCapacity) {
+        this(threads, queueCapacity, new ParserConfig());
+    }
+
+    public ParserConfig getParserConfig() {
+        return parserConfig;
+    }
+
+    /**
+     * Extract every document from sources, and wait for them all to finish.
+     *
+     * @return the number of documents that were and were not extracted successfully
+     * @throws InterruptedException if the calling thread is interrupted while waiting. Documents that have
+     *                              already been taken from sources will still be processed.
+     */
+    public Result extract(Iterator<Source> sources, final Listener listener) throws InterruptedException {
+        final Semaphore slots = new Semaphore(capacity);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        while (sources.hasNext()) {
+            slots.acquire();
+            final Source source = sources.next();
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (extractOne(source, listener)) {
+                                completed.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+        slots.acquire(capacity);
+        slots.release(capacity);
+        return new Result(completed.get(), failed.get());
+    }
+
+    /**
+     * @return true if the document was parsed and the listener accepted it
+     */
+    private boolean extractOne(Source source, Listener listener) {
+        RDFMicrodataParser parser = parsers.poll();
+        try {
+            try {
+                parser.setRDFHandler(listener.getHandler(source));
+                parser.parse(source.getInputStream(), source.getCharset(), source.getBaseURI());
+            } catch (Exception e) {
+                logger.debug("failed to extract {}", source, e);
+                listener.documentFailed(source, e);
+                return false;
+            }
+            try {
+                listener.documentCompleted(source);
+                return true;
+            } catch (Exception e) {
+                // already reported as completed, so only counted as a failure
+                logger.warn("Could not complete {}: {}", source.getBaseURI(), e.toString());
+                return false;
+            }
+        } finally {
+            parser.setRDFHandler(null);
+            parsers.add(parser);
+            try {
+                source.getInputStream().close();
+            } catch (IOException e) {
+                logger.debug("could not close {}", source, e);
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads once any documents that have already been submitted are finished.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+}
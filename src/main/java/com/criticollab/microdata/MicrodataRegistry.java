@@ -3,6 +3,9 @@ package com.criticollab.microdata;/**
  */
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +13,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class MicrodataRegistry {
@@ -17,9 +23,15 @@ public class MicrodataRegistry {
     private static Logger logger = LoggerFactory.getLogger(MicrodataRegistry.class);
     private static ObjectMapper jsonMapper = new ObjectMapper();
     public static final URL DEFAULT_REGISTRY_URL;
+    /**
+     * The property attributes whose values are extra predicates for a property, in the order they are generated.
+     */
+    static final String[] EXPANSION_ATTRIBUTES = {"subPropertyOf", "equivalentProperty"};
+    static final URI[] NO_EXPANSIONS = new URI[0];
+    private static final ValueFactory VALUE_FACTORY = ValueFactoryImpl.getInstance();
 
     public static class PropertyAttributes {
-        private Map<String, Object> attributes = new HashMap<>();
+        private final Map<String, Object> attributes = new HashMap<>();
 
         PropertyAttributes(Map<String, Object> attributes) {
             this.attributes.putAll(attributes);
@@ -64,15 +76,84 @@ public class MicrodataRegistry {
     }
 
     public static class RegistryEntry {
-        private Map<String, PropertyAttributes> properties = new HashMap<>();
-        private String prefixURI;
+        private final Map<String, PropertyAttributes> properties;
+        private final String prefixURI;
+        /**
+         * True if properties can not be added, so the entry's contents never change.
+         */
+        private final boolean readOnly;
+        /**
+         * The predicates each property expands to, by property name; built when first needed, and again after a
+         * property is added.
+         */
+        private volatile Map<String, URI[]> expansions;
+        /**
+         * As expansions, but followed transitively through the registry; set by the registry the entry is in.
+         */
+        private volatile Map<String, URI[]> transitiveExpansions;
 
         public RegistryEntry(String prefixURI) {
             this.prefixURI = prefixURI;
+            this.properties = new HashMap<>();
+            this.readOnly = false;
+        }
+
+        /**
+         * Create a read-only entry. Entries loaded by a registry are shared between parsers, so
+         * they are never modified after construction.
+         */
+        RegistryEntry(String prefixURI, Map<String, PropertyAttributes> properties) {
+            this.prefixURI = prefixURI;
+            this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
+            this.readOnly = true;
+            this.expansions = compileExpansions();
         }
 
         public void addProperty(String propertyName, PropertyAttributes attributes) {
             properties.put(propertyName, attributes);
+            expansions = null;
+            transitiveExpansions = null;
+        }
+
+        /**
+         * Get the predicates that a property's statements are repeated with: the values of its subPropertyOf and
+         * then its equivalentProperty attributes.  The URIs are created once, with a {@link ValueFactoryImpl}.
+         * The array is shared, and must not be modified.
+         *
+         * @param transitive true to include the predicates that those predicates expand to in turn, and so on
+         * @return the predicates, or an empty array
+         */
+        URI[] getExpansions(String name, boolean transitive) {
+            Map<String, URI[]> compiled = transitive ? transitiveExpansions : null;
+            if (compiled == null) {
+                compiled = expansions;
+                if (compiled == null) {
+                    compiled = compileExpansions();
+                    expansions = compiled;
+                }
+            }
+            URI[] uris = compiled.get(name);
+            return uris == null ? NO_EXPANSIONS : uris;
+        }
+
+        private Map<String, URI[]> compileExpansions() {
+            Map<String, URI[]> compiled = new HashMap<>();
+            for (Map.Entry<String, PropertyAttributes> property : properties.entrySet()) {
+                List<URI> uris = new ArrayList<>();
+                for (String attr : EXPANSION_ATTRIBUTES) {
+                    for (String equiv : property.getValue().getAttributeAsListOfStrings(attr)) {
+                        try {
+                            uris.add(VALUE_FACTORY.createURI(equiv));
+                        } catch (IllegalArgumentException e) {
+                            logger.warn("ignoring {} {} of {}{}: not a URI", attr, equiv, prefixURI, property.getKey());
+                        }
+                    }
+                }
+                if (!uris.isEmpty()) {
+                    compiled.put(property.getKey(), uris.toArray(new URI[uris.size()]));
+                }
+            }
+            return compiled;
         }
         public String getPropertyAttribute(String name,String attr) {
             PropertyAttributes attributes = properties.get(name);
@@ -107,7 +188,94 @@ public class MicrodataRegistry {
         }
     }
 
-    private static List<RegistryEntry> registryEntries = new ArrayList<>();
+    /**
+     * The entries in this registry, in the order in which they were read. Unmodifiable once the
+     * registry has been constructed, so a registry may be shared between threads.
+     */
+    private final List<RegistryEntry> registryEntries;
+    /**
+     * Index of registryEntries by prefix URI, used to find the longest matching prefix for a type.
+     */
+    private final PrefixTrie prefixIndex;
+    /**
+     * True if every entry is read-only, so that the version can be cached.
+     */
+    private final boolean readOnly;
+    /**
+     * A digest of the entries, computed when first asked for if the registry is read-only.
+     */
+    private volatile String version;
+
+    /**
+     * A character trie over registry prefix URIs. Each node keeps its child edges in a sorted
+     * array, so a lookup costs one binary search per character of the type URI, independent of the
+     * number of entries in the registry.
+     */
+    static final class PrefixTrie {
+        private static final char[] NO_KEYS = new char[0];
+        private static final PrefixTrie[] NO_CHILDREN = new PrefixTrie[0];
+
+        private char[] keys = NO_KEYS;
+        private PrefixTrie[] children = NO_CHILDREN;
+        private RegistryEntry entry;
+
+        PrefixTrie(Collection<RegistryEntry> entries) {
+            for (RegistryEntry registryEntry : entries) {
+                add(registryEntry);
+            }
+        }
+
+        private PrefixTrie() {
+        }
+
+        private void add(RegistryEntry registryEntry) {
+            String prefix = registryEntry.getPrefixURI();
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            // if a prefix is listed twice, the first entry wins.
+            if (node.entry == null) {
+                node.entry = registryEntry;
+            }
+        }
+
+        private PrefixTrie getOrAddChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -(index + 1);
+            char[] newKeys = new char[keys.length + 1];
+            PrefixTrie[] newChildren = new PrefixTrie[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            PrefixTrie child = new PrefixTrie();
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        RegistryEntry longestMatch(String urlString) {
+            PrefixTrie node = this;
+            RegistryEntry best = node.entry;
+            for (int i = 0; i < urlString.length(); i++) {
+                int index = Arrays.binarySearch(node.keys, urlString.charAt(i));
+                if (index < 0) {
+                    break;
+                }
+                node = node.children[index];
+                if (node.entry != null) {
+                    best = node.entry;
+                }
+            }
+            return best;
+        }
+    }
 
     static {
         try {
@@ -123,33 +291,88 @@ public class MicrodataRegistry {
         this(DEFAULT_REGISTRY_URL);
     }
 
+    /**
+     * Load a registry. Reading and parsing the registry JSON is comparatively expensive; parsers should
+     * obtain registries through {@link MicrodataRegistryCache}, which loads each registry URL only once.
+     */
     public MicrodataRegistry(URL url) throws IOException {
         if(url.equals(DEFAULT_REGISTRY_URL)) {
             url = getClass().getResource("/ns/md.json");
         }
-        initRegistry(url);
+        registryEntries = Collections.unmodifiableList(initRegistry(url));
+        readOnly = true;
+        prefixIndex = new PrefixTrie(registryEntries);
+        compileTransitiveExpansions();
+    }
+
+    /**
+     * Create a registry from entries that have already been constructed. Mostly useful for
+     * testing and benchmarking with synthetic registries.
+     */
+    MicrodataRegistry(Collection<RegistryEntry> entries) {
+        registryEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+        boolean allReadOnly = true;
+        for (RegistryEntry entry : registryEntries) {
+            allReadOnly &= entry.readOnly;
+        }
+        readOnly = allReadOnly;
+        prefixIndex = new PrefixTrie(registryEntries);
+        compileTransitiveExpansions();
+    }
+
+    /**
+     * Give every entry the transitive closure of its properties' expansions: a predicate that a property expands
+     * to is looked up in the registry, and its own expansions are added, and so on, ignoring cycles.
+     */
+    private void compileTransitiveExpansions() {
+        for (RegistryEntry entry : registryEntries) {
+            Map<String, URI[]> closures = new HashMap<>();
+            for (String name : entry.properties.keySet()) {
+                URI[] direct = entry.getExpansions(name, false);
+                if (direct.length == 0) {
+                    continue;
+                }
+                String self = entry.prefixURI + name;
+                Set<URI> closure = new LinkedHashSet<>();
+                Deque<URI> pending = new ArrayDeque<>(Arrays.asList(direct));
+                while (!pending.isEmpty()) {
+                    URI uri = pending.removeFirst();
+                    String uriString = uri.stringValue();
+                    if (uriString.equals(self) || !closure.add(uri)) {
+                        continue;
+                    }
+                    RegistryEntry owner = match(uriString);
+                    if (owner != null) {
+                        pending.addAll(Arrays.asList(owner.getExpansions(uriString.substring(owner.prefixURI.length()), false)));
+                    }
+                }
+                closures.put(name, closure.toArray(new URI[closure.size()]));
+            }
+            entry.transitiveExpansions = closures;
+        }
     }
 
-    private void initRegistry(URL url) throws IOException {
+    private List<RegistryEntry> initRegistry(URL url) throws IOException {
         InputStream in = url.openStream();
+        List<RegistryEntry> registryEntries = new ArrayList<>();
 
         try {
-            Map<String, Object> fromJson = (Map<String, Object>) jsonMapper.readValue(url, Object.class);
+            Map<String, Object> fromJson = (Map<String, Object>) jsonMapper.readValue(in, Object.class);
             for (Map.Entry<String, Object> js : fromJson.entrySet()) {
-                RegistryEntry registryEntry = new RegistryEntry(js.getKey());
                 Object jsValue = js.getValue();
                 if (!(jsValue instanceof Map)) {
                     continue;
                 }
                 Map<String, Object> entryValue = (Map<String, Object>) jsValue;
                 Map<String, Map<String, Object>> props = (Map<String, Map<String, Object>>) entryValue.get("properties");
+                Map<String, PropertyAttributes> properties = new HashMap<>();
                 if (props != null) {
                     for (Map.Entry<String, Map<String, Object>> objectEntry : props.entrySet()) {
                         Map<String, Object> propertyAttributes = objectEntry.getValue();
-                        registryEntry.addProperty(objectEntry.getKey(), new PropertyAttributes(propertyAttributes));
+                        properties.put(objectEntry.getKey(), new PropertyAttributes(propertyAttributes));
                     }
                 }
-                registryEntries.add(registryEntry);
+                registryEntries.add(new RegistryEntry(js.getKey(), properties));
             }
             if (logger.isDebugEnabled()) {
                 for (RegistryEntry registryEntry : registryEntries) {
@@ -157,6 +380,7 @@ public class MicrodataRegistry {
                 }
             }
             logger.debug("registry entries: {}", registryEntries);
+            return registryEntries;
         } finally {
             if(in != null) {
                 try {
@@ -167,12 +391,69 @@ public class MicrodataRegistry {
         }
     }
 
+    /**
+     * Find the registry entry whose prefix URI is the longest prefix of urlString.
+     *
+     * @param urlString an item type
+     * @return the matching entry, or null if no entry matches.
+     */
     public RegistryEntry match( String urlString) {
+        return prefixIndex.longestMatch(urlString);
+    }
+
+    /**
+     * @return the entries in this registry, in the order in which they were defined.
+     */
+    public List<RegistryEntry> getEntries() {
+        return registryEntries;
+    }
+
+    /**
+     * @return a digest of the registry's entries, as a hex string.  Registries with the same entries have the
+     * same version, so results extracted with one registry can be told apart from those extracted with another,
+     * for instance by {@link ExtractionCache}.  The digest is cached for a registry that was loaded, but
+     * computed again on each call if the registry holds entries that properties can still be added to.
+     */
+    public String getVersion() {
+        if (!readOnly) {
+            return computeVersion();
+        }
+        String v = version;
+        if (v == null) {
+            v = computeVersion();
+            version = v;
+        }
+        return v;
+    }
+
+    private String computeVersion() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
         for (RegistryEntry entry : registryEntries) {
-            if(urlString.startsWith(entry.prefixURI)) {
-                return entry;
+            updateDigest(digest, entry.prefixURI);
+            // property maps are hash maps, so sort their keys to get the same digest in every JVM
+            for (String name : new TreeSet<>(entry.properties.keySet())) {
+                updateDigest(digest, name);
+                Map<String, Object> attributes = entry.properties.get(name).attributes;
+                for (String key : new TreeSet<>(attributes.keySet())) {
+                    updateDigest(digest, key);
+                    updateDigest(digest, String.valueOf(attributes.get(key)));
+                }
             }
         }
-        return null;
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void updateDigest(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
     }
 }
@@ -0,0 +1,113 @@
+package com.criticollab.microdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of loaded {@link MicrodataRegistry} instances, keyed by registry URL.
+ * <p>
+ * Each registry is read at most once; all parsers that ask for the same URL share the same
+ * registry instance.  Registries are immutable once loaded, so sharing them between threads is safe.
+ * If two threads ask for a registry that has not yet been loaded, one of them loads it and the
+ * other waits for the result.  A registry that fails to load is not cached, so a later request
+ * will try again.
+ */
+public class MicrodataRegistryCache {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(MicrodataRegistryCache.class);
+    private static final MicrodataRegistryCache INSTANCE = new MicrodataRegistryCache();
+
+    private final ConcurrentMap<String, FutureTask<MicrodataRegistry>> registries = new ConcurrentHashMap<>();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+
+    MicrodataRegistryCache() {
+    }
+
+    /**
+     * @return the cache shared by all parsers in this JVM.
+     */
+    public static MicrodataRegistryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the registry for the given URL, loading it if this is the first request for that URL.
+     *
+     * @param url the location of the registry JSON, or {@link MicrodataRegistry#DEFAULT_REGISTRY_URL}
+     * @return the shared registry for url
+     * @throws IOException if the registry could not be read.
+     */
+    public MicrodataRegistry getRegistry(final URL url) throws IOException {
+        // URL.equals may do name resolution, so key on the string form instead.
+        String key = url.toExternalForm();
+        FutureTask<MicrodataRegistry> task = registries.get(key);
+        if (task == null) {
+            FutureTask<MicrodataRegistry> newTask = new FutureTask<>(new Callable<MicrodataRegistry>() {
+                @Override
+                public MicrodataRegistry call() throws IOException {
+                    logger.debug("loading registry {}", url);
+                    loadCount.incrementAndGet();
+                    return new MicrodataRegistry(url);
+                }
+            });
+            task = registries.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            } else {
+                hitCount.incrementAndGet();
+            }
+        } else {
+            hitCount.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for registry " + url, e);
+        } catch (ExecutionException e) {
+            registries.remove(key, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Could not load registry " + url, cause);
+        }
+    }
+
+    /**
+     * @return the number of registries that have been loaded (including failed attempts).
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return the number of requests that were satisfied by an already loaded (or loading) registry.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Discard all cached registries, so that the next request for each URL will reload it.
+     * Statistics are not reset.
+     */
+    public void clear() {
+        registries.clear();
+    }
+}
@@ -0,0 +1,13 @@
+package com.criticollab.microdata;
+
+/**
+ * Receives the statistics of every successful parse made by the parsers it is given to, for instance to
+ * aggregate them across all of the parsers in a process.  See {@link JmxParseMetrics} for an implementation
+ * that publishes histograms through JMX.
+ * <p>
+ * Parsers call {@link #record} from the thread that ran the parse, so implementations shared by several
+ * parsers must be thread-safe.
+ */
+public interface ParseMetricsSink {
+    void record(ParseStats stats);
+}
@@ -0,0 +1,120 @@
+package com.criticollab.microdata;
+
+/**
+ * Where the time went in one parse, and how much was extracted.  Collected by {@link RDFMicrodataParser} when
+ * {@link RDFMicrodataParser#COLLECT_STATS} is set or a {@link ParseMetricsSink} has been given to it.
+ * <p>
+ * Times are in nanoseconds.  When reading from a stream, the HTML parse time includes reading the input.  In
+ * streaming mode items are found while the HTML is read, so the item discovery time is zero and the HTML parse
+ * time is the time spent outside item processing.  In parallel mode the item processing time is the elapsed time,
+ * not the sum over threads.
+ */
+public final class ParseStats {
+    long htmlParseNanos;
+    long itemDiscoveryNanos;
+    long itemProcessingNanos;
+    int itemCount;
+    int propertyCount;
+    int itemrefCount;
+    long statementCount;
+    long duplicateStatementCount;
+    int registryLookupCount;
+    int maxItemDepth;
+
+    /**
+     * @return the time taken to read and parse the HTML.
+     */
+    public long getHtmlParseNanos() {
+        return htmlParseNanos;
+    }
+
+    /**
+     * @return the time taken to index the document and find its top level items.
+     */
+    public long getItemDiscoveryNanos() {
+        return itemDiscoveryNanos;
+    }
+
+    /**
+     * @return the time taken to generate the statements for the items.
+     */
+    public long getItemProcessingNanos() {
+        return itemProcessingNanos;
+    }
+
+    /**
+     * @return the number of items processed, counting an item each time it is the value of a property.
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return the number of property elements evaluated.
+     */
+    public int getPropertyCount() {
+        return propertyCount;
+    }
+
+    /**
+     * @return the number of elements found through itemref.
+     */
+    public int getItemrefCount() {
+        return itemrefCount;
+    }
+
+    /**
+     * @return the number of statements sent to the RDFHandler.
+     */
+    public long getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * @return the number of repeated statements dropped, when {@link RDFMicrodataParser#DEDUPLICATE} is set.
+     */
+    public long getDuplicateStatementCount() {
+        return duplicateStatementCount;
+    }
+
+    /**
+     * @return the number of item types looked up in the registry.
+     */
+    public int getRegistryLookupCount() {
+        return registryLookupCount;
+    }
+
+    /**
+     * @return the deepest nesting of items, where a top level item has depth 1.
+     */
+    public int getMaxItemDepth() {
+        return maxItemDepth;
+    }
+
+    /**
+     * Add the counts gathered by a state that processed items.
+     */
+    void addCounts(RDFMicrodataParser.ExtractionState state) {
+        itemCount += state.itemCount;
+        propertyCount += state.propertyCount;
+        itemrefCount += state.itemrefCount;
+        statementCount += state.statementCount;
+        duplicateStatementCount += state.duplicateCount;
+        registryLookupCount += state.registryLookupCount;
+        maxItemDepth = Math.max(maxItemDepth, state.maxDepth);
+    }
+
+    @Override
+    public String toString() {
+        return "ParseStats{htmlParseNanos=" + htmlParseNanos
+                + ", itemDiscoveryNanos=" + itemDiscoveryNanos
+                + ", itemProcessingNanos=" + itemProcessingNanos
+                + ", itemCount=" + itemCount
+                + ", propertyCount=" + propertyCount
+                + ", itemrefCount=" + itemrefCount
+                + ", statementCount=" + statementCount
+                + ", duplicateStatementCount=" + duplicateStatementCount
+                + ", registryLookupCount=" + registryLookupCount
+                + ", maxItemDepth=" + maxItemDepth + '}';
+    }
+}
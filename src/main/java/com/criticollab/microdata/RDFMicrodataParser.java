@@ -2,19 +2,17 @@ package com.criticollab.microdata;
 
 
 import info.aduna.net.ParsedURI;
-import org.apache.commons.io.input.ReaderInputStream;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
-import org.jsoup.select.Elements;
 import org.openrdf.model.*;
 import org.openrdf.model.impl.LinkedHashModel;
 import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.model.vocabulary.RDF;
-import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
 import org.openrdf.rio.RioSetting;
@@ -26,12 +24,24 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-
-import static org.openrdf.model.datatypes.XMLDatatypeUtil.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RDFMicrodataParser extends RDFParserBase {
     private static final URI STANDARD_URI = ValueFactoryImpl.getInstance().createURI("http://www.w3.org/ns/formats/md");
@@ -39,10 +49,8 @@ public class RDFMicrodataParser extends RDFParserBase {
     public static final RDFFormat FORMAT = new RDFFormat("HTML5-Microdata2", Arrays.asList("text/html"),
             Charset.forName("UTF-8"), Arrays.asList("html"), STANDARD_URI, RDFFormat.NO_NAMESPACES,
             RDFFormat.NO_CONTEXTS);
-    private static final String CHARSET_NAME = "UTF_16BE";
-    private static final Charset CHARSET = Charset.forName(CHARSET_NAME);
+    private static final int READ_BUFFER_SIZE = 8192;
     private static final String ITEMID = "itemid";
-    private static final String[] SUBPROPERTY_REGISTRY_ATTRIBUTES = new String[]{"subPropertyOf", "equivalentProperty"};
     @SuppressWarnings("UnusedDeclaration")
     private static Logger logger = LoggerFactory.getLogger(RDFMicrodataParser.class);
 
@@ -50,12 +58,222 @@ public class RDFMicrodataParser extends RDFParserBase {
      * The JSoup DOM from which to extract items
      */
     private Document document;
+    /**
+     * Elements of the document that item extraction looks up, so that the document is only searched once.
+     * When extracting from a token stream there is no complete document, and the index holds only ids.
+     */
+    private DocumentIndex index;
     private MicrodataRegistry registry;
     /**
      * A mapping from Item Elements to Resources. Part of the evaluation context defined
      * in the microdata-to-rdf spec)
      */
     private Map<Element, Resource> memory;
+    /**
+     * True while items are processed in parallel, when memory is synchronized and subjects are chosen under its lock.
+     */
+    private boolean parallelMemory;
+    /**
+     * The state used when items are processed on the parsing thread.
+     */
+    private ExtractionState state;
+    /**
+     * Runs item processing tasks in parallel mode; null to use a shared pool.
+     */
+    private ExecutorService executor;
+    /**
+     * Supplies the URIs of predicates and types; chosen when a document is started.
+     */
+    private URICache uriCache;
+    /**
+     * Predicates generated in the current document for names used without a current type, by name.
+     */
+    private ConcurrentMap<String, URI> documentPredicates;
+    /**
+     * Predicates generated in the current document for names used in a vocabulary, by vocabulary and name.
+     */
+    private ConcurrentMap<String, ConcurrentMap<String, URI>> vocabularyPredicates;
+    /**
+     * The value of {@link #MAX_LITERAL_LENGTH} for the current document, or Integer.MAX_VALUE for no limit.
+     */
+    private int maxLiteralLength;
+    /**
+     * The value of {@link #TRANSITIVE_SUBPROPERTIES} for the current document.
+     */
+    private boolean transitiveSubProperties;
+    /**
+     * True if the registry's expansion URIs can be used as they are, because the value factory is a
+     * {@link ValueFactoryImpl}.
+     */
+    private boolean sharedExpansions;
+    /**
+     * Collects text content on the parsing thread; kept between documents.
+     */
+    private final StringBuilder textBuffer = new StringBuilder();
+    /**
+     * The statistics of the current parse, or null if they are not being collected.
+     */
+    private ParseStats stats;
+    private ParseStats lastParseStats;
+    private ParseMetricsSink metricsSink;
+    /**
+     * Kept between documents, so that its table is reused.
+     */
+    private StatementDeduplicator deduplicator;
+
+    /**
+     * Mutable state used while processing items.  Each thread that processes items has its own.
+     */
+    static final class ExtractionState {
+        /**
+         * Where generated statements are sent.
+         */
+        final RDFHandler handler;
+        /**
+         * The items being processed, outermost first.  Frames beyond depth are kept for reuse.
+         */
+        private final List<ItemFrame> frames = new ArrayList<>();
+        private int depth;
+        /**
+         * The elements of the items being processed, so that an item that refers back to itself is not expanded again.
+         */
+        private final Set<Element> activeItems = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        /**
+         * The language of elements whose language has been looked up, or "" if they have none.
+         */
+        final Map<Element, String> languages = new IdentityHashMap<>();
+        /**
+         * Scratch list of the elements visited while looking up a language.
+         */
+        final List<Element> languagePath = new ArrayList<>();
+        /**
+         * Walks the ids of itemref attributes.
+         */
+        final TokenCursor itemrefs = new TokenCursor();
+        /**
+         * Collects the text content of elements.
+         */
+        final StringBuilder text;
+        /**
+         * Counts of the work done with this state, reported in {@link ParseStats}.
+         */
+        int itemCount;
+        int propertyCount;
+        int itemrefCount;
+        long statementCount;
+        long duplicateCount;
+        int registryLookupCount;
+        int maxDepth;
+        /**
+         * Drops statements already generated for the document, or null if they are passed on.
+         */
+        StatementDeduplicator deduplicator;
+
+        ExtractionState(RDFHandler handler, StringBuilder text) {
+            this.handler = handler;
+            this.text = text;
+        }
+
+        /**
+         * @return the frame for an item one level deeper than the current one.
+         */
+        ItemFrame pushItem(Element element) {
+            if (depth == frames.size()) {
+                frames.add(new ItemFrame());
+            }
+            ItemFrame frame = frames.get(depth++);
+            frame.element = element;
+            activeItems.add(element);
+            itemCount++;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+            return frame;
+        }
+
+        /**
+         * @return the frame of the innermost item being processed.
+         */
+        ItemFrame currentItem() {
+            return frames.get(depth - 1);
+        }
+
+        /**
+         * Finish the innermost item being processed.
+         */
+        void popItem() {
+            ItemFrame frame = frames.get(--depth);
+            activeItems.remove(frame.element);
+            frame.clear();
+        }
+
+        boolean isActive(Element element) {
+            return activeItems.contains(element);
+        }
+
+        void emit(Statement statement) throws RDFHandlerException {
+            if (deduplicator != null && !deduplicator.add(statement)) {
+                duplicateCount++;
+                return;
+            }
+            statementCount++;
+            handler.handleStatement(statement);
+        }
+
+        /**
+         * Add the counts of another state, which processed items of the same document.  Statements are counted
+         * when this state emits them.
+         */
+        void addCounts(ExtractionState other) {
+            itemCount += other.itemCount;
+            propertyCount += other.propertyCount;
+            itemrefCount += other.itemrefCount;
+            registryLookupCount += other.registryLookupCount;
+            maxDepth = Math.max(maxDepth, other.maxDepth);
+        }
+    }
+
+    /**
+     * Where processing of one item has got to: the property being evaluated, and which of its names.
+     */
+    static final class ItemFrame {
+        final TokenCursor tokens = new TokenCursor();
+        Element element;
+        Resource subject;
+        /**
+         * The current type and vocabulary of the evaluation context for the item's properties.
+         */
+        String type;
+        String vocabulary;
+        MicrodataRegistry.RegistryEntry registryEntry;
+        List<Element> properties;
+        /**
+         * The index in properties of the next property to evaluate.
+         */
+        int next;
+        /**
+         * The property being evaluated, or null if the next one should be started.
+         */
+        Element property;
+        /**
+         * True while walking the names in the property's itemprop-reverse attribute rather than its itemprop.
+         */
+        boolean reverse;
+        /**
+         * The property name being evaluated, and its predicate if it is not a reverse property.
+         */
+        String name;
+        URI predicate;
+
+        void clear() {
+            element = null;
+            subject = null;
+            registryEntry = null;
+            properties = null;
+            property = null;
+            predicate = null;
+        }
+    }
     /**
      * The URI of the current item being processed. Part of the evaluation context defined
      * in the microdata-to-rdf spec
@@ -73,6 +291,72 @@ public class RDFMicrodataParser extends RDFParserBase {
     public static final RioSetting<URL> REGISTRY = new RioSettingImpl<>("com.criticollab.microdata.registry",
             "Registry to use",
             MicrodataRegistry.DEFAULT_REGISTRY_URL);
+    /**
+     * Process independent top level items concurrently. Statements are still reported to the RDFHandler
+     * from the calling thread, in the same order as when items are processed one at a time, although blank
+     * node labels may differ between runs.
+     */
+    public static final RioSetting<Boolean> PARALLEL_ITEMS = new RioSettingImpl<>("com.criticollab.microdata.parallel-items",
+            "Process top level items concurrently",
+            Boolean.FALSE);
+    /**
+     * Extract items while reading the HTML, keeping only the parts of the page that can contribute to
+     * items, instead of building a DOM for the whole document first.  Only used by the parse methods.
+     */
+    public static final RioSetting<Boolean> STREAMING = new RioSettingImpl<>("com.criticollab.microdata.streaming",
+            "Extract items while reading the HTML, without building a DOM for the whole page",
+            Boolean.FALSE);
+    /**
+     * In streaming mode, the number of kept subtrees (pending items, and elements with ids that an itemref might
+     * point to) above which the extractor stops waiting for, and keeping, elements that itemrefs might reach.
+     * This bounds memory, at the cost of itemrefs that reach far back or far ahead finding nothing.  Zero, the
+     * default, means no limit, and the same results as DOM mode.
+     */
+    public static final RioSetting<Integer> STREAMING_RETAINED_LIMIT = new RioSettingImpl<>("com.criticollab.microdata.streaming-retained-limit",
+            "Maximum number of subtrees kept for itemref in streaming mode (0 for no limit)",
+            0);
+    /**
+     * The maximum number of characters in a literal made from the text of an element; longer text is truncated
+     * without being copied in full.  Zero, the default, means no limit.
+     */
+    public static final RioSetting<Integer> MAX_LITERAL_LENGTH = new RioSettingImpl<>("com.criticollab.microdata.max-literal-length",
+            "Maximum length of literals made from element text (0 for no limit)",
+            0);
+    /**
+     * Collect {@link ParseStats} for each parse, available from {@link #getLastParseStats()}.  Statistics are
+     * also collected whenever a {@link ParseMetricsSink} has been set.
+     */
+    public static final RioSetting<Boolean> COLLECT_STATS = new RioSettingImpl<>("com.criticollab.microdata.collect-stats",
+            "Collect timings and counts for each parse",
+            Boolean.FALSE);
+    /**
+     * Drop statements that have already been generated for the document, such as those repeated when an element
+     * is reached through several itemrefs.  Statements are remembered by fingerprint; see
+     * {@link #DEDUPLICATION_LIMIT} for the memory used.
+     */
+    public static final RioSetting<Boolean> DEDUPLICATE = new RioSettingImpl<>("com.criticollab.microdata.deduplicate",
+            "Drop repeated statements within a document",
+            Boolean.FALSE);
+    /**
+     * The number of statements per document remembered exactly when deduplicating.  Beyond this, statements are
+     * remembered in a Bloom filter for four times as many more, which very rarely takes a new statement for a
+     * repeat; after that, later repeats are passed on.  Memory use is bounded by about 48 bytes per statement of
+     * the limit.
+     */
+    public static final RioSetting<Integer> DEDUPLICATION_LIMIT = new RioSettingImpl<>("com.criticollab.microdata.deduplication-limit",
+            "Number of statements per document remembered exactly when deduplicating",
+            1 << 16);
+    /**
+     * Also generate the predicates that a property's subPropertyOf and equivalentProperty values expand to in the
+     * registry, and so on transitively, rather than only those given for the property itself.
+     */
+    public static final RioSetting<Boolean> TRANSITIVE_SUBPROPERTIES = new RioSettingImpl<>("com.criticollab.microdata.transitive-subproperties",
+            "Follow subPropertyOf and equivalentProperty transitively through the registry",
+            Boolean.FALSE);
+    /**
+     * Text buffers larger than this are released after use, rather than kept for the next literal.
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
 
 
     /**
@@ -93,6 +377,14 @@ public class RDFMicrodataParser extends RDFParserBase {
         Collection<RioSetting<?>> settings = super.getSupportedSettings();
         settings.add(FAIL_ON_RELATIVE_ITEMIDS);
         settings.add(FAIL_ON_RELATIVE_ITEMTYPES);
+        settings.add(STREAMING);
+        settings.add(STREAMING_RETAINED_LIMIT);
+        settings.add(PARALLEL_ITEMS);
+        settings.add(MAX_LITERAL_LENGTH);
+        settings.add(COLLECT_STATS);
+        settings.add(DEDUPLICATE);
+        settings.add(DEDUPLICATION_LIMIT);
+        settings.add(TRANSITIVE_SUBPROPERTIES);
         return settings;
     }
 
@@ -110,13 +402,30 @@ public class RDFMicrodataParser extends RDFParserBase {
     @Override
     public void parse(InputStream in, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
 
-        parse(in, null, baseURI);
+        parse(in, (String) null, baseURI);
+    }
+
+    /**
+     * Parses the data from the supplied InputStream, decoding it with the given charset, and using the supplied
+     * baseURI to resolve any relative URI references.  When the charset is known, for instance from an HTTP
+     * Content-Type header, the bytes are decoded once, without first being sniffed for a meta charset.
+     *
+     * @param in      The InputStream from which to read the data.
+     * @param charset The charset of the data, or null to detect it from the document, falling back to UTF-8.
+     * @param baseURI The URI associated with the data in the InputStream.
+     * @throws java.io.IOException                 If an I/O error occurred while data was read from the InputStream.
+     * @throws org.openrdf.rio.RDFParseException   If the parser has found an unrecoverable parse error.
+     * @throws org.openrdf.rio.RDFHandlerException If the configured statement handler has encountered an
+     *                                             unrecoverable error.
+     */
+    public void parse(InputStream in, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        parse(in, charset == null ? null : charset.name(), baseURI);
     }
 
     /**
      * Parses the data from the supplied Reader, using the supplied baseURI to
-     * resolve any relative URI references.  Since JSoup only takes bytes input streams,
-     * we have to encode the contents so that jsoup can do its own decoding.
+     * resolve any relative URI references.  The characters are handed to the HTML parser as they are,
+     * without being encoded and decoded again.
      *
      * @param reader  The Reader from which to read the data.
      * @param baseURI The URI associated with the data in the InputStream.
@@ -127,28 +436,182 @@ public class RDFMicrodataParser extends RDFParserBase {
      */
     @Override
     public void parse(Reader reader, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
-        ReaderInputStream in = new ReaderInputStream(reader, CHARSET);
-        parse(in, CHARSET_NAME, baseURI);
+        if (getParserConfig().get(STREAMING)) {
+            parseStreaming(reader, baseURI);
+            return;
+        }
+        long start = beginParse();
+        // JSoup only parses whole strings, so read the characters into one
+        extractParsed(Jsoup.parse(readFully(reader), baseURI), baseURI, start);
+    }
+
+    /**
+     * Parses the HTML in a file, using the supplied baseURI to resolve any relative URI references.  The file is
+     * memory-mapped and decoded directly, rather than read through an InputStream.  The mapping is not released
+     * explicitly: it lasts until the buffer is garbage collected, and until then some platforms, such as Windows,
+     * will not let the file be deleted.
+     *
+     * @param path    The file to read; it must be smaller than 2GB.  To extract a page from part of a larger
+     *                archive, map the archive and use {@link #parse(ByteBuffer, Charset, String)} on a slice.
+     * @param charset The charset of the data, or null to detect it from the document, falling back to UTF-8.
+     * @param baseURI The URI associated with the data in the file.
+     * @throws java.io.IOException                 If an I/O error occurred while the file was read.
+     * @throws org.openrdf.rio.RDFParseException   If the parser has found an unrecoverable parse error.
+     * @throws org.openrdf.rio.RDFHandlerException If the configured statement handler has encountered an
+     *                                             unrecoverable error.
+     */
+    public void parse(Path path, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("cannot map " + path + " of " + size + " bytes; map a slice of it instead");
+            }
+            parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset, baseURI);
+        }
+    }
+
+    /**
+     * Parses the HTML held in the remaining bytes of a buffer, such as a slice of a {@link java.nio.MappedByteBuffer},
+     * using the supplied baseURI to resolve any relative URI references.  The bytes are decoded directly from the
+     * buffer, without being copied into a byte array.  The buffer's position is not changed.
+     *
+     * @param bytes   The buffer holding the data.
+     * @param charset The charset of the data, or null to detect it from a byte order mark or the document,
+     *                falling back to UTF-8.
+     * @param baseURI The URI associated with the data in the buffer.
+     * @throws java.io.IOException                 If an I/O error occurred while data was read from the buffer.
+     * @throws org.openrdf.rio.RDFParseException   If the parser has found an unrecoverable parse error.
+     * @throws org.openrdf.rio.RDFHandlerException If the configured statement handler has encountered an
+     *                                             unrecoverable error.
+     */
+    public void parse(ByteBuffer bytes, Charset charset, String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        ByteBuffer in = bytes.duplicate();
+        if (charset == null) {
+            charset = ByteBufferInput.skipByteOrderMark(in);
+        }
+        if (getParserConfig().get(STREAMING)) {
+            Charset streamCharset = charset == null ? FORMAT.getCharset() : charset;
+            parseStreaming(new InputStreamReader(new ByteBufferInput.Stream(in), streamCharset), baseURI);
+            return;
+        }
+        long start = beginParse();
+        Document parsed;
+        if (charset != null) {
+            parsed = Jsoup.parse(ByteBufferInput.decode(in, charset), baseURI);
+        } else {
+            parsed = Jsoup.parse(ByteBufferInput.decode(in, FORMAT.getCharset()), baseURI);
+            Charset declared = ByteBufferInput.declaredCharset(parsed);
+            if (declared != null && !declared.equals(FORMAT.getCharset())) {
+                parsed = Jsoup.parse(ByteBufferInput.decode(in, declared), baseURI);
+            }
+        }
+        extractParsed(parsed, baseURI, start);
+    }
+
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder html = new StringBuilder();
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            html.append(buffer, 0, count);
+        }
+        return html.toString();
     }
 
     private void parse(InputStream in, String charsetName, String baseURI) throws IOException, RDFHandlerException, RDFParseException {
+        if (getParserConfig().get(STREAMING)) {
+            // without a DOM there is no second chance to switch encodings, so assume UTF-8 unless told otherwise
+            Charset charset = charsetName == null ? FORMAT.getCharset() : Charset.forName(charsetName);
+            parseStreaming(new InputStreamReader(in, charset), baseURI);
+            return;
+        }
+        long start = beginParse();
+        extractParsed(Jsoup.parse(in, charsetName, baseURI), baseURI, start);
+    }
+
+    /**
+     * Forget the statistics of the previous parse, so that a parse that fails before extraction starts does
+     * not leave them in place.
+     *
+     * @return the time at which parsing began, as from {@link System#nanoTime()}
+     */
+    private long beginParse() {
+        lastParseStats = null;
+        return System.nanoTime();
+    }
+
+    /**
+     * Extract the items of a document read by one of the parse methods, then clear the state of the parse.
+     *
+     * @param parseStart the time at which the HTML began to be read, as returned by {@link #beginParse()}
+     */
+    private void extractParsed(Document parsed, String baseURI, long parseStart) throws IOException, RDFParseException, RDFHandlerException {
         setBaseURI(baseURI);
         try {
-            document = Jsoup.parse(in, charsetName, baseURI);
-            registry = new MicrodataRegistry(getParserConfig().get(REGISTRY));
+            startStats();
+            htmlParsed(parseStart);
+            document = parsed;
+            registry = MicrodataRegistryCache.getInstance().getRegistry(getParserConfig().get(REGISTRY));
             processDocument();
+            publishStats();
         } finally {
             clear();
         }
+    }
 
+    private void parseStreaming(Reader reader, String baseURI) throws IOException, RDFHandlerException, RDFParseException {
+        setBaseURI(baseURI);
+        try {
+            startStats();
+            long start = System.nanoTime();
+            registry = MicrodataRegistryCache.getInstance().getRegistry(getParserConfig().get(REGISTRY));
+            new StreamingMicrodataExtractor(this, baseURI, getParserConfig().get(STREAMING_RETAINED_LIMIT)).extract(reader);
+            if (stats != null) {
+                stats.htmlParseNanos = System.nanoTime() - start - stats.itemProcessingNanos;
+            }
+            publishStats();
+        } finally {
+            clear();
+        }
     }
 
     @Override
     protected void clear() {
         super.clear();
         document = null;
+        index = null;
         memory = null;
+        state = null;
         registry = null;
+        documentPredicates = null;
+        vocabularyPredicates = null;
+        stats = null;
+    }
+
+    /**
+     * Start collecting statistics for a parse, if they are wanted.
+     */
+    private void startStats() {
+        lastParseStats = null;
+        stats = metricsSink != null || getParserConfig().get(COLLECT_STATS) ? new ParseStats() : null;
+    }
+
+    private void htmlParsed(long start) {
+        if (stats != null) {
+            stats.htmlParseNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Make the statistics of a successful parse available.
+     */
+    private void publishStats() {
+        if (stats != null) {
+            lastParseStats = stats;
+            if (metricsSink != null) {
+                metricsSink.record(stats);
+            }
+        }
     }
 
 
@@ -157,10 +620,12 @@ public class RDFMicrodataParser extends RDFParserBase {
         Model model;
         try {
             setBaseURI(doc.baseUri());
-            registry = new MicrodataRegistry(getParserConfig().get(REGISTRY));
+            registry = MicrodataRegistryCache.getInstance().getRegistry(getParserConfig().get(REGISTRY));
             model = new LinkedHashModel();
             setRDFHandler(new StatementCollector(model));
+            startStats();
             processDocument();
+            publishStats();
             setRDFHandler(null);
             return model;
         } finally {
@@ -169,46 +634,255 @@ public class RDFMicrodataParser extends RDFParserBase {
     }
 
     private void processDocument() throws RDFHandlerException, RDFParseException {
+        long start = System.nanoTime();
+        startDocument(document, DocumentIndex.build(document));
+        List<Element> items = findTopLevelItems(index);
+        long discovered = System.nanoTime();
+        if (getParserConfig().get(PARALLEL_ITEMS) && items.size() > 1) {
+            processItemsInParallel(items);
+        } else {
+            for (Element element : items) {
+                processItem(element, null, null);
+            }
+        }
+        if (stats != null) {
+            stats.itemDiscoveryNanos += discovered - start;
+            stats.itemProcessingNanos += System.nanoTime() - discovered;
+        }
+        endDocument();
+    }
+
+    /**
+     * Process top level items concurrently. Each item's statements are collected by the task that processes
+     * it, and passed to the RDFHandler in document order. The calling thread runs any task that has not been
+     * started when its turn comes, so progress does not depend on the executor having free threads.
+     * <p>
+     * Tasks read the parser's per-document fields, so the method does not return until every task has either
+     * finished or been stopped from starting; otherwise, after a failure, a task could still be running when the
+     * parser is cleared or has moved on to the next document.
+     */
+    private void processItemsInParallel(List<Element> items) throws RDFParseException, RDFHandlerException {
+        memory = Collections.synchronizedMap(memory);
+        parallelMemory = true;
+        // tasks hold the read lock while they run; the write lock is taken once no task may start any more
+        final ReadWriteLock running = new ReentrantReadWriteLock();
+        final boolean[] abandoned = new boolean[1];
+        List<FutureTask<List<Statement>>> tasks = new ArrayList<>(items.size());
+        final List<ExtractionState> taskStates = new ArrayList<>(items.size());
+        for (final Element item : items) {
+            final List<Statement> statements = new ArrayList<>();
+            final ExtractionState taskState = new ExtractionState(new StatementCollector(statements), new StringBuilder());
+            taskStates.add(taskState);
+            tasks.add(new FutureTask<>(new Callable<List<Statement>>() {
+                @Override
+                public List<Statement> call() throws RDFParseException, RDFHandlerException {
+                    running.readLock().lock();
+                    try {
+                        if (!abandoned[0]) {
+                            processItem(item, null, null, taskState);
+                        }
+                        return statements;
+                    } finally {
+                        running.readLock().unlock();
+                    }
+                }
+            }));
+        }
+        ExecutorService executorService = getExecutor();
+        try {
+            for (FutureTask<List<Statement>> task : tasks) {
+                executorService.execute(task);
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                FutureTask<List<Statement>> task = tasks.get(i);
+                task.run();
+                for (Statement statement : task.get()) {
+                    state.emit(statement);
+                }
+                state.addCounts(taskStates.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reportFatalError(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RDFParseException) {
+                throw (RDFParseException) cause;
+            } else if (cause instanceof RDFHandlerException) {
+                throw (RDFHandlerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            reportFatalError((Exception) cause);
+        } finally {
+            for (FutureTask<List<Statement>> task : tasks) {
+                task.cancel(true);
+            }
+            running.writeLock().lock();
+            abandoned[0] = true;
+            running.writeLock().unlock();
+            parallelMemory = false;
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        return executor != null ? executor : SharedPool.POOL;
+    }
+
+    /**
+     * Holder for the pool used when no executor has been set, created on first use.
+     */
+    private static final class SharedPool {
+        static final ExecutorService POOL = new ForkJoinPool();
+    }
+
+    /**
+     * Prepare to process the items in a document.
+     *
+     * @param document the document, used for its base URI
+     * @param index    the index used to find elements in the document
+     */
+    void startDocument(Document document, DocumentIndex index) throws RDFHandlerException {
+        this.document = document;
+        this.index = index;
         memory = new IdentityHashMap<>();
+        state = new ExtractionState(getRDFHandler(), textBuffer);
+        if (getParserConfig().get(DEDUPLICATE)) {
+            int limit = getParserConfig().get(DEDUPLICATION_LIMIT);
+            if (deduplicator == null || deduplicator.getLimit() != limit) {
+                deduplicator = new StatementDeduplicator(limit);
+            } else {
+                deduplicator.clear();
+            }
+            state.deduplicator = deduplicator;
+        }
+        uriCache = selectURICache();
+        sharedExpansions = uriCache == URICache.getSharedInstance();
+        transitiveSubProperties = getParserConfig().get(TRANSITIVE_SUBPROPERTIES);
+        documentPredicates = new ConcurrentHashMap<>();
+        vocabularyPredicates = new ConcurrentHashMap<>();
+        int maxLength = getParserConfig().get(MAX_LITERAL_LENGTH);
+        maxLiteralLength = maxLength > 0 ? maxLength : Integer.MAX_VALUE;
         getRDFHandler().startRDF();
-        for (Element element : findTopLevelItems(document)) {
-            processItem(element, null, null);
+    }
+
+    /**
+     * Prepare to process the top level items of a parsed document one at a time, as {@link IncrementalExtractor}
+     * does.  Call {@link #endDocument} when they have been processed, and then {@link #clear}.  Statements are not
+     * deduplicated, so that each item's statements can be recorded in full; the caller drops repeats itself.
+     *
+     * @return the index of the document, which lists its top level items
+     */
+    DocumentIndex startDocument(Document document) throws IOException, RDFHandlerException {
+        setBaseURI(document.baseUri());
+        registry = MicrodataRegistryCache.getInstance().getRegistry(getParserConfig().get(REGISTRY));
+        DocumentIndex documentIndex = DocumentIndex.build(document);
+        startDocument(document, documentIndex);
+        state.deduplicator = null;
+        return documentIndex;
+    }
+
+    void endDocument() throws RDFHandlerException {
+        if (stats != null) {
+            stats.addCounts(state);
         }
         getRDFHandler().endRDF();
     }
 
+    /**
+     * Process a top level item found while extracting from a token stream, timing it if statistics are wanted.
+     */
+    void processTopLevelItem(Element item) throws RDFParseException, RDFHandlerException {
+        long start = stats == null ? 0 : System.nanoTime();
+        processItem(item, null, null);
+        if (stats != null) {
+            stats.itemProcessingNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Forget the subjects of items that cannot be reached again, so that memory does not grow with the size of
+     * the document.  An item can only be reached again if it is inside one of the retained subtrees.
+     * Cached languages are forgotten too.
+     *
+     * @param retainedRoots the roots of subtrees that may be reached again, compared by identity
+     */
+    void forgetItems(Set<Element> retainedRoots) {
+        state.languages.clear();
+        Iterator<Element> it = memory.keySet().iterator();
+        while (it.hasNext()) {
+            Element element = it.next();
+            boolean retained = false;
+            for (Element e = element; e != null && !retained; e = e.parent()) {
+                retained = retainedRoots.contains(e);
+            }
+            if (!retained) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A top level item is an element with an itemscope that is not the value of a property; elements
+     * that are the subject of a reverse property are also treated as top level items.  {@link DocumentIndex}
+     * finds top level items with the same test while it indexes the document.
+     */
+    static boolean isTopLevelItem(Element element) {
+        return element.hasAttr("itemscope") && (!element.hasAttr("itemprop") || element.hasAttr("itemprop-reverse"));
+    }
+
 
     Resource processItem(Element itemElement, String currentItemType, String currentVocabulary) throws RDFParseException, RDFHandlerException {
-        logger.debug("processing top level item in {} ", itemElement.nodeName());
-        /*
-        1. If there is an entry for item in memory, then let subject be the subject of that entry.
-        Otherwise, if item has a global identifier and that global identifier is an absolute URL,
-         let subject be that global identifier.
-        Otherwise, let subject be a new blank node.
-         */
-        Resource subject = memory.get(itemElement);
-        if (subject == null) {
-            if (itemElement.hasAttr(ITEMID)) {
-                String uriString = itemElement.attr(ITEMID);
-                try {
-                    subject = resolveURI(uriString);
-                } catch (RDFParseException e) {
-                    if (getParserConfig().get(FAIL_ON_RELATIVE_ITEMIDS)) {
-                        reportFatalError(e);
-                    } else {
-                        reportWarning(e.getMessage());
+        return processItem(itemElement, currentItemType, currentVocabulary, state);
+    }
+
+    /**
+     * Generate the triples for an item, and return its subject.  Nested items are processed with an explicit
+     * stack of frames rather than by recursion, so the depth of nesting is not limited by the thread's stack.
+     * An item that is reached again while it is still being processed (through an itemref cycle) is not
+     * expanded again; its subject is used as the value.
+     */
+    Resource processItem(Element itemElement, String currentItemType, String currentVocabulary, ExtractionState state) throws RDFParseException, RDFHandlerException {
+        int outerDepth = state.depth;
+        try {
+            startItem(state.pushItem(itemElement), currentItemType, currentVocabulary, state);
+            Resource finished = null;
+            while (true) {
+                ItemFrame frame = state.currentItem();
+                if (finished != null) {
+                    completeProperty(frame, finished, state);
+                    finished = null;
+                }
+                Element nested = nextProperty(frame, state);
+                if (nested == null) {
+                    finished = frame.subject;
+                    state.popItem();
+                    if (state.depth == outerDepth) {
+                        return finished;
                     }
+                } else if (state.isActive(nested)) {
+                    finished = getSubject(nested);
+                } else {
+                    startItem(state.pushItem(nested), frame.type, frame.vocabulary, state);
                 }
             }
+        } finally {
+            while (state.depth > outerDepth) {
+                state.popItem();
+            }
         }
-        if (subject == null) {
-            subject = createBNode();
-        }
-        /*
-           2. Add a mapping from item to subject in memory
-         */
+    }
 
-        memory.put(itemElement, subject);
+    /**
+     * Choose the subject of the frame's item, generate its type triples, and find its properties.
+     */
+    private void startItem(ItemFrame frame, String currentItemType, String currentVocabulary, ExtractionState state) throws RDFParseException, RDFHandlerException {
+        Element itemElement = frame.element;
+        TokenCursor tokens = frame.tokens;
+        logger.debug("processing top level item in {} ", itemElement.nodeName());
+        Resource subject = getSubject(itemElement);
 
     /*
      3. For each type returned from element.itemType of the element defining the item.
@@ -222,15 +896,15 @@ public class RDFMicrodataParser extends RDFParserBase {
         if (itemElement.hasAttr("itemtype"))
 
         {
-            String[] itemtypes = itemElement.attr("itemtype").split(" ");
-            for (String itemtype : itemtypes) {
-                ParsedURI uri = new ParsedURI(itemtype);
-                if (!uri.isAbsolute()) {
+            tokens.reset(itemElement.attr("itemtype"));
+            while (tokens.next()) {
+                String itemtype = tokens.token();
+                if (!hasScheme(itemtype)) {
                     if (getParserConfig().get(FAIL_ON_RELATIVE_ITEMTYPES)) {
                         reportFatalError("encountered relative itemtype; " + itemtype);
                     }
                 } else {
-                    rdfHandler.handleStatement(createStatement(subject, RDF.TYPE, createURI(uri.toString())));
+                    state.emit(createStatement(subject, RDF.TYPE, createURI("", itemtype)));
                     if (primaryMicrodataType == null) {
                         primaryMicrodataType = itemtype;
                     }
@@ -254,6 +928,7 @@ public class RDFMicrodataParser extends RDFParserBase {
         String vocab = null;
         if (primaryMicrodataType != null) {
             registryEntry = getRegistry().match(primaryMicrodataType);
+            state.registryLookupCount++;
 
             if (registryEntry != null) {
                 vocab = registryEntry.getPrefixURI();
@@ -271,70 +946,138 @@ public class RDFMicrodataParser extends RDFParserBase {
                 }
             }
         }
-        currentVocabulary = vocab;
-        currentItemType = primaryMicrodataType;
-        List<Element> itemProperties = findItemProperties(itemElement);
+        frame.subject = subject;
+        frame.vocabulary = vocab;
+        frame.type = primaryMicrodataType;
+        frame.registryEntry = registryEntry;
+        frame.properties = findItemProperties(itemElement, state);
+        frame.next = 0;
+        frame.property = null;
+    }
+
+    /**
+     * Evaluate the frame's property names in order, generating the triples for those whose value is not an item.
+     *
+     * @return the element of a nested item that must be processed before the current name can be completed,
+     * or null if all of the item's properties have been evaluated.
+     */
+    private Element nextProperty(ItemFrame frame, ExtractionState state) throws RDFParseException, RDFHandlerException {
+        TokenCursor tokens = frame.tokens;
         //For each element element that has one or more property names and is one of the properties of the item item run the following substep:
-        for (Element itemProperty : itemProperties) {
-            logger.trace("itemProperty: {}" + itemProperty);
-            // For each name in the element's property names, run the following substeps:
-            if (itemProperty.hasAttr("itemprop")) {
-                for (String name : itemProperty.attr("itemprop").split(" ")) {
+        while (true) {
+            Element itemProperty = frame.property;
+            if (itemProperty == null) {
+                if (frame.next == frame.properties.size()) {
+                    return null;
+                }
+                itemProperty = frame.properties.get(frame.next++);
+                state.propertyCount++;
+                logger.trace("itemProperty: {}", itemProperty);
+                frame.property = itemProperty;
+                frame.reverse = false;
+                // For each name in the element's property names, run the following substeps:
+                tokens.reset(itemProperty.attr("itemprop"));
+            }
+            if (tokens.next()) {
+                String name = tokens.token();
+                frame.name = name;
     //              Let context be a copy of evaluation context with current type set to type.
-                    //SES: let's not.
+                //SES: let's not.
     //                  Let predicate be the result of generate predicate URI using context and name.
-                    String predicate = generatePredicateURI(name, currentItemType, currentVocabulary);
-                    Value value;
-                    if (itemProperty.hasAttr("itemscope")) {
-                        // If value is an item, then generate the triples for value using context. Replace value by the subject returned from those steps.
-                        value = processItem(itemProperty, currentItemType, currentVocabulary);
-                    } else {
-                        value = createValue(itemProperty);
-                    }
+                frame.predicate = frame.reverse ? null : createPredicate(name, frame.type, frame.vocabulary);
+                if (itemProperty.hasAttr("itemscope")) {
+                    // If value is an item, then generate the triples for value using context. Replace value by the subject returned from those steps.
+                    return itemProperty;
+                }
+                completeProperty(frame, createValue(itemProperty, state), state);
+            } else if (!frame.reverse) {
+                frame.reverse = true;
+                tokens.reset(itemProperty.attr("itemprop-reverse"));
+            } else {
+                frame.property = null;
+            }
+        }
+    }
+
+    /**
+     * Generate the triples for the frame's current property name, now that its value is known.
+     */
+    private void completeProperty(ItemFrame frame, Value value, ExtractionState state) throws RDFParseException, RDFHandlerException {
+        Resource subject = frame.subject;
+        if (frame.reverse) {
+            if (!(value instanceof Literal)) {
+                URI predicate = createPredicate(frame.name, frame.type, frame.vocabulary);
+                state.emit(createStatement((Resource) value, predicate, subject));
+            }
+            return;
+        }
     //                    Let value be the property value of element.
     //                    Generate the following triple:
-                    rdfHandler.handleStatement(createStatement(subject, createURI(predicate), value));
+        state.emit(createStatement(subject, frame.predicate, value));
     //            subject subject predicate predicate object value
     //            If an entry exists in the registry for name in the vocabulary associated with vocab having the key subPropertyOf or equivalentProperty,
     //            for each such value equiv, generate the following triple:
     //            subject subject predicate equiv object value
-                    if (registryEntry != null) {
-                        for (String attr : SUBPROPERTY_REGISTRY_ATTRIBUTES) {
-                            List<String> equivs = registryEntry.getPropertyAttributeAsListOfStrings(name, attr);
-                            for (String equiv : equivs) {
-                                rdfHandler.handleStatement(createStatement(subject, createURI(equiv), value));
-
-                            }
-                        }
-                    }
+        MicrodataRegistry.RegistryEntry registryEntry = frame.registryEntry;
+        if (registryEntry != null) {
+            URI[] equivs = registryEntry.getExpansions(frame.name, transitiveSubProperties);
+            for (URI equiv : equivs) {
+                state.emit(createStatement(subject, sharedExpansions ? equiv : createURI("", equiv.stringValue()), value));
+            }
+        }
+    }
 
-                }
+    /**
+     * Find or create the subject for an item.  When items are processed in parallel, the memory is locked while
+     * the subject is chosen, so that an item reached from two top level items gets a single subject.
+     */
+    private Resource getSubject(Element itemElement) throws RDFParseException {
+        if (parallelMemory) {
+            synchronized (memory) {
+                return findSubject(itemElement);
             }
+        }
+        return findSubject(itemElement);
+    }
 
-            if (itemProperty.hasAttr("itemprop-reverse")) {
-                for (String name : itemProperty.attr("itemprop-reverse").split(" ")) {
-                    Value value;
-                    if (itemProperty.hasAttr("itemscope")) {
-                        // If value is an item, then generate the triples for value using context. Replace value by the subject returned from those steps.
-                        value = processItem(itemProperty, currentItemType, currentVocabulary);
+    private Resource findSubject(Element itemElement) throws RDFParseException {
+        /*
+        1. If there is an entry for item in memory, then let subject be the subject of that entry.
+        Otherwise, if item has a global identifier and that global identifier is an absolute URL,
+         let subject be that global identifier.
+        Otherwise, let subject be a new blank node.
+         */
+        Resource subject = memory.get(itemElement);
+        if (subject == null) {
+            if (itemElement.hasAttr(ITEMID)) {
+                String uriString = itemElement.attr(ITEMID);
+                try {
+                    subject = resolveURI(uriString);
+                } catch (RDFParseException e) {
+                    if (getParserConfig().get(FAIL_ON_RELATIVE_ITEMIDS)) {
+                        reportFatalError(e);
                     } else {
-                        value = createValue(itemProperty);
-                    }
-
-                    if (!(value instanceof Literal)) {
-                        String predicate = generatePredicateURI(name, currentItemType, currentVocabulary);
-                        rdfHandler.handleStatement(createStatement((Resource) value, createURI(predicate), subject));
+                        reportWarning(e.getMessage());
                     }
                 }
-
             }
         }
+        if (subject == null) {
+            subject = createBNode();
+        }
+        /*
+           2. Add a mapping from item to subject in memory
+         */
 
-
+        memory.put(itemElement, subject);
         return subject;
     }
 
-    private Value createValue(Element element) throws RDFParseException {
+    Value createValue(Element element) throws RDFParseException {
+        return createValue(element, state);
+    }
+
+    private Value createValue(Element element, ExtractionState state) throws RDFParseException {
 //        If the element is a URL property element (a, area, audio, embed, iframe, img, link, object, source, track or video)
 //        The value is a URI reference created from element.itemValue. (See relevant attribute descriptions in [HTML5]).
 
@@ -375,18 +1118,12 @@ public class RDFMicrodataParser extends RDFParserBase {
                     throw new RDFParseException("missing value in " + element);
                 }
                 String value = element.attr("value");
-                if (isValidInteger(value)) {
-//                  If the value is a valid integer having the lexical form of xsd:integer [XMLSCHEMA11-2]
-//                  The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#integer.
-                    return createLiteral(value, null, XMLSchema.INTEGER);
-                } else if (isValidDouble(value)) {
-//                  If the value is a valid float number having the lexical form of xsd:double [XMLSCHEMA11-2]
-//                  The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#double.
-                    return createLiteral(value, null, XMLSchema.DOUBLE);
-                } else {
-//                  The value is a simple literal.
-                    return createLiteral(value, null, null);
-                }
+//              If the value is a valid integer having the lexical form of xsd:integer [XMLSCHEMA11-2]
+//              The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#integer.
+//              If the value is a valid float number having the lexical form of xsd:double [XMLSCHEMA11-2]
+//              The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#double.
+//              Otherwise the value is a simple literal.
+                return createLiteral(value, null, LiteralDatatypes.numberDatatype(value));
             }
 
 
@@ -398,7 +1135,7 @@ public class RDFMicrodataParser extends RDFParserBase {
                 if (!element.hasAttr("content")) {
                     throw new RDFParseException("Missing content in " + element);
                 }
-                return createLiteral(element.attr("content"), getLang(element), null);
+                return createLiteral(element.attr("content"), getLang(element, state), null);
             }
 
 //        If the element is a time element.
@@ -407,42 +1144,17 @@ public class RDFMicrodataParser extends RDFParserBase {
 //        If the element has a non-empty language, the value is a language-tagged string created from the value with language information set from the language of the property element. Otherwise, the value is a simple literal created from the value.
 //                NOTE
             case "time": {
-                URI datatype = null;
                 String value;
                 if (element.hasAttr("datetime")) {
                     value = element.attr("datetime");
                 } else {
-                    value = getTextContent(element);
-                }
-                if (isValidDate(value)) {
-//                If the value is a valid date string having the lexical form of xsd:date [XMLSCHEMA11-2].
-//                The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#date.
-                    datatype = XMLSchema.DATE;
-                } else if (isValidTime(value)) {
-//                If the value is a valid time string having the lexical form of xsd:time [XMLSCHEMA11-2].
-//                The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#time.
-                    datatype = XMLSchema.TIME;
-                } else if (isValidDateTime(value)) {
-//                If the value is a valid local date and time string or valid global date and time string having the lexical form of xsd:dateTime [XMLSCHEMA11-2].
-//                The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#dateTime.
-
-                    datatype = XMLSchema.DATETIME;
-                } else if (isValidGYearMonth(value)) {
-//                  If the value is a valid month string having the lexical form of xsd:gYearMonth [XMLSCHEMA11-2].
-//                  The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#gYearMonth.
-
-                    datatype = XMLSchema.GYEARMONTH;
-                } else if (isValidGYear(value)) {
-//                If the value is a valid non-negative integer having the lexical form of xsd:gYear [XMLSCHEMA11-2].
-//                The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#gYear.
-
-                    datatype = XMLSchema.GYEAR;
-                } else if (isValidDuration(value)) {
-//                If the value is a valid duration string having the lexical form of xsd:duration [XMLSCHEMA11-2].
-//                The value is a typed literal composed of the value and http://www.w3.org/2001/XMLSchema#duration.
-                    datatype = XMLSchema.DURATION;
+                    value = getTextContent(element, state);
                 }
-                String lang = datatype != null ? null : getLang(element);
+//                If the value has the lexical form of xsd:date, xsd:time, xsd:dateTime, xsd:gYearMonth, xsd:gYear
+//                or xsd:duration [XMLSCHEMA11-2], tried in that order, the value is a typed literal composed of
+//                the value and that datatype.
+                URI datatype = LiteralDatatypes.timeDatatype(value);
+                String lang = datatype != null ? null : getLang(element, state);
                 return createLiteral(value, lang, datatype);
 
             }
@@ -456,85 +1168,223 @@ public class RDFMicrodataParser extends RDFParserBase {
 
 
             default:
-                return createLiteral(getTextContent(element), getLang(element), null);
+                return createLiteral(getTextContent(element, state), getLang(element, state), null);
         }
     }
 
-    private String getTextContent(Element element) {
-        StringBuilder buf = new StringBuilder();
-        apppendTextContent(buf, element);
-        return buf.toString();
+    /**
+     * Concatenate the text nodes below element, in tree order, up to the maximum literal length.  The tree is
+     * walked through parent and sibling links rather than by recursion, so deeply nested markup cannot
+     * overflow the stack.
+     */
+    private String getTextContent(Element element, ExtractionState state) {
+        StringBuilder buf = state.text;
+        buf.setLength(0);
+        int remaining = maxLiteralLength;
+        Node node = element.childNodeSize() > 0 ? element.childNode(0) : null;
+        while (node != null && remaining > 0) {
+            if (node instanceof TextNode) {
+                String text = ((TextNode) node).getWholeText();
+                if (text.length() <= remaining) {
+                    buf.append(text);
+                    remaining -= text.length();
+                } else {
+                    int end = remaining;
+                    // don't split a surrogate pair
+                    if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    buf.append(text, 0, end);
+                    remaining = 0;
+                }
+            } else if (node instanceof Element) {
+                if (node.childNodeSize() > 0) {
+                    node = node.childNode(0);
+                    continue;
+                }
+            } else {
+                logger.trace("ignoring node of type {}", node.getClass());
+            }
+            // move to the next node in tree order that is not a descendant of node
+            while (node != element && node.nextSibling() == null) {
+                node = node.parent();
+            }
+            node = node == element ? null : node.nextSibling();
+        }
+        String text = buf.toString();
+        buf.setLength(0);
+        if (buf.capacity() > MAX_RETAINED_BUFFER) {
+            buf.trimToSize();
+        }
+        return text;
     }
 
-    private void apppendTextContent(StringBuilder buf, Node node) {
-        if (node instanceof Element) {
-            Element element = (Element) node;
-            for (Node child : element.childNodes()) {
-                apppendTextContent(buf, child);
-            }
-        } else if (node instanceof TextNode) {
-            TextNode textNode = (TextNode) node;
-            buf.append(textNode.getWholeText());
+    String generatePredicateURI(String name, String currentType, String currentVocabulary) {
+        String namespace = getPredicateNamespace(name, currentType, currentVocabulary);
+        return namespace.length() == 0 ? name : namespace + name;
+    }
+
+    /**
+     * The same as {@link #generatePredicateURI}, but each predicate is only generated once per document, and
+     * predicates in a vocabulary come from the URI cache.
+     */
+    URI createPredicate(String name, String currentType, String currentVocabulary) throws RDFParseException {
+        if (hasScheme(name)) {
+            return createURI("", name);
+        }
+        // without a current vocabulary the predicate depends only on the name; otherwise on the vocabulary and name.
+        // A type with no '/' or '#', such as a URN, has no vocabulary.
+        ConcurrentMap<String, URI> predicates;
+        if (currentType == null || currentVocabulary == null) {
+            predicates = documentPredicates;
         } else {
-            logger.info("ignoring node of type {}", node.getClass());
+            predicates = vocabularyPredicates.get(currentVocabulary);
+            if (predicates == null) {
+                predicates = new ConcurrentHashMap<>();
+                ConcurrentMap<String, URI> existing = vocabularyPredicates.putIfAbsent(currentVocabulary, predicates);
+                if (existing != null) {
+                    predicates = existing;
+                }
+            }
+        }
+        URI predicate = predicates.get(name);
+        if (predicate == null) {
+            String namespace = getPredicateNamespace(name, currentType, currentVocabulary);
+            if (predicates == documentPredicates) {
+                // names relative to the document are not shared with other documents, so are not worth caching
+                predicate = createURI(namespace + name);
+            } else {
+                predicate = createURI(namespace, name);
+            }
+            predicates.put(name, predicate);
         }
+        return predicate;
     }
 
-    String generatePredicateURI(String name, String currentType, String currentVocabulary) {
+    /**
+     * @return the string that precedes name in the predicate URI: empty if name is absolute, otherwise
+     * the document base or vocabulary followed by a separator if needed.
+     */
+    private String getPredicateNamespace(String name, String currentType, String currentVocabulary) {
 //        If name is an absolute URL, return name as a URI reference.
-        ParsedURI parsedURI = new ParsedURI(name);
-        if (parsedURI.isAbsolute()) {
-            return name;
+        if (hasScheme(name)) {
+            return "";
         }
 
 //        If current type from context is null, there can be no current vocabulary. Return the URI reference that is the document base with its fragment set to the canonicalized fragment value of name.
 
-        if (currentType == null) {
-            return document.baseUri() + ("#") + name;
+        if (currentType == null || currentVocabulary == null) {
+            return document.baseUri() + "#";
         }
 //        Set expandedURI to the URI reference constructed by appending the canonicalized fragment value of name to current vocabulary, separated by a U+0023 NUMBER SIGN character ("#") unless the current vocabulary ends with either a U+0023 NUMBER SIGN character ("#") or SOLIDUS U+002F ("/").
 //                Return expandedURI.
         //TODO:FIXME
         if (currentVocabulary.endsWith("/") || currentVocabulary.endsWith("#")) {
-            return currentVocabulary + name;
+            return currentVocabulary;
         } else {
-            return currentVocabulary + "#" + name;
+            return currentVocabulary + "#";
+        }
+    }
+
+    /**
+     * Check whether a URI reference is absolute, without parsing it. As in {@link ParsedURI}, a URI is
+     * absolute if it has a non-empty scheme: a ':' that comes before any '/', '?' or '#'.
+     */
+    static boolean hasScheme(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            switch (uri.charAt(i)) {
+                case ':':
+                    return i > 0;
+                case '/':
+                case '?':
+                case '#':
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a URI from the URI cache.
+     */
+    private URI createURI(String namespace, String localName) throws RDFParseException {
+        try {
+            return uriCache.getURI(namespace, localName);
+        } catch (IllegalArgumentException e) {
+            reportFatalError(e);
+            return null;
         }
+    }
 
+    /**
+     * URIs from a {@link ValueFactoryImpl} are plain values, so any parser using one can share the process-wide
+     * cache. Other factories may create URIs that belong to a particular store, so they get a cache of their own.
+     */
+    private URICache selectURICache() {
+        if (valueFactory.getClass() == ValueFactoryImpl.class) {
+            return URICache.getSharedInstance();
+        }
+        if (uriCache == null || uriCache.getValueFactory() != valueFactory) {
+            return new URICache(valueFactory, URICache.DEFAULT_MAXIMUM_SIZE);
+        }
+        return uriCache;
     }
 
+    /**
+     * Find the properties of an item.  Elements are compared by identity, and the subtrees to search are walked
+     * depth first, so that when the item has no itemref the results are found in tree order.  Otherwise they are
+     * sorted into tree order using the document index; when extracting from a token stream, where there is no
+     * index of the whole document, the properties found through itemref follow the item's own properties.
+     */
     List<Element> findItemProperties(Element root) {
+        return findItemProperties(root, null);
+    }
+
+    /**
+     * @param state the state in which to count the elements found through itemref, or null
+     */
+    private List<Element> findItemProperties(Element root, ExtractionState state) {
 //        Let results, memory, and pending be empty lists of elements.
 //
         List<Element> results = new ArrayList<>();
-        Set<Element> memory = new HashSet<>();
-        Queue<Element> pending = new ArrayDeque<>();
+        Set<Element> memory = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        Deque<Element> pending = new ArrayDeque<>();
         //        Add the element root to memory.
         memory.add(root);
 //
-//        Add the child elements of root, if any, to pending.
-        pending.addAll(root.children());
-
-//
 //        If root has an itemref attribute, split the value of that itemref attribute on spaces.
-
+        boolean followedItemref = false;
         if (root.hasAttr("itemref")) {
-            String ids[] = root.attr("itemref").split(" ");
+            TokenCursor ids = (state == null ? new TokenCursor() : state.itemrefs).reset(root.attr("itemref"));
             // For each resulting token ID, if there is an element in the home subtree of root with the ID ID,
             // then add the first such element to pending.
-            for (String id : ids) {
-                Elements foundIds = document.select(String.format("[id=%s]", id));
-                if (foundIds.size() > 0) {
-                    pending.add(foundIds.get(0));
+            DocumentIndex index = getIndex();
+            List<Element> referenced = new ArrayList<>();
+            while (ids.next()) {
+                Element found = index.getElementById(ids.token());
+                if (found != null) {
+                    referenced.add(found);
                 }
             }
+            // pending is a stack, so push in reverse to visit in order
+            for (int i = referenced.size() - 1; i >= 0; i--) {
+                pending.push(referenced.get(i));
+            }
+            followedItemref = !referenced.isEmpty();
+            if (state != null) {
+                state.itemrefCount += referenced.size();
+            }
         }
-
+//
+//        Add the child elements of root, if any, to pending.
+        pushChildren(root, pending);
 
 //                Loop: If pending is empty, jump to the step labeled end of loop.
         while (!pending.isEmpty()) {
 //                Remove an element from pending and let current be that element.
-            Element current = pending.remove();
+            Element current = pending.pop();
 //        If current is already in memory, there is a microdata error; return to the step labeled loop.
 //        Add current to memory.
 
@@ -545,43 +1395,98 @@ public class RDFMicrodataParser extends RDFParserBase {
 //
 //        If current does not have an itemscope attribute, then: add all the child elements of current to pending.
             if (!current.hasAttr("itemscope")) {
-                pending.addAll(current.children());
+                pushChildren(current, pending);
             }
 //       If current has an itemprop attribute specified and has one or more property names, then add current to results.
 //
-            String itemprop = current.attr("itemprop");
-            if (itemprop.length() > 0) {
+            if (TokenCursor.hasTokens(current.attr("itemprop")) || TokenCursor.hasTokens(current.attr("itemprop-reverse"))) {
                 results.add(current);
-            } else {
-                String itempropReverse = current.attr("itemprop-reverse");
-                if (itempropReverse.length() > 0) {
-                    results.add(current);
-                }
             }
         }
 
 //        End of loop: Sort results in tree order.
 //                Return results.
 //
+        if (followedItemref && results.size() > 1) {
+            Collections.sort(results, getIndex().getTreeOrder());
+        }
         return results;
     }
 
+    /**
+     * Push the child elements of element onto a stack, so that they are popped in tree order.
+     */
+    private static void pushChildren(Element element, Deque<Element> pending) {
+        for (int i = element.childNodeSize() - 1; i >= 0; i--) {
+            Node child = element.childNode(i);
+            if (child instanceof Element) {
+                pending.push((Element) child);
+            }
+        }
+    }
+
     List<Element> findTopLevelItems(Document document) {
-        return document.select("[itemscope]:not([itemprop]:not([itemprop-reverse])");
+        DocumentIndex documentIndex = index;
+        if (documentIndex == null || documentIndex.getRoot() != document) {
+            documentIndex = DocumentIndex.build(document);
+        }
+        return findTopLevelItems(documentIndex);
+    }
+
+    private List<Element> findTopLevelItems(DocumentIndex index) {
+        return index.getTopLevelItems();
+    }
+
+    /**
+     * @return the index of the current document, building it if necessary.
+     */
+    private DocumentIndex getIndex() {
+        if (index == null) {
+            index = DocumentIndex.build(document);
+        }
+        return index;
     }
 
     String getLang(Element element) {
-        if (element.hasAttr("lang")) {
-            String lang = element.attr("lang");
-            if (lang.length() == 0) {
-                lang = null;
-            }
-            return lang;
-        } else if (element.parent() != null) {
-            return getLang((element.parent()));
-        } else {
-            return null;
+        return getLang(element, null);
+    }
+
+    /**
+     * Find the language of an element from the nearest lang attribute on it or its ancestors.  Every element
+     * visited is added to the state's language cache, so later lookups for the same element, its ancestors, or
+     * descendants that reach them take constant time.
+     *
+     * @param state the state holding the language cache, or null to look up the language without a cache
+     * @return the language, or null if there is none or it is empty
+     */
+    private String getLang(Element element, ExtractionState state) {
+        Map<Element, String> languages = state == null ? null : state.languages;
+        List<Element> path = state == null ? null : state.languagePath;
+        String lang = null;
+        for (Element e = element; e != null; e = e.parent()) {
+            if (languages != null) {
+                String cached = languages.get(e);
+                if (cached != null) {
+                    lang = cached;
+                    break;
+                }
+                path.add(e);
+            }
+            if (e.hasAttr("lang")) {
+                lang = e.attr("lang");
+                break;
+            }
+        }
+        if (lang == null) {
+            lang = "";
+        }
+        if (languages != null) {
+            for (Element e : path) {
+                languages.put(e, lang);
+            }
+            path.clear();
         }
+        return lang.length() == 0 ? null : lang;
     }
 
     public Document getDocument() {
@@ -591,6 +1496,32 @@ public class RDFMicrodataParser extends RDFParserBase {
 
     public void setDocument(Document document) {
         this.document = document;
+        this.index = null;
+    }
+
+    /**
+     * Set the executor used to process items when {@link #PARALLEL_ITEMS} is enabled. By default a pool
+     * shared by all parsers, with one thread per processor, is used.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the statistics of the last successful parse, or null if they were not collected or the last parse
+     * failed.
+     * @see #COLLECT_STATS
+     */
+    public ParseStats getLastParseStats() {
+        return lastParseStats;
+    }
+
+    /**
+     * Set a sink to which the statistics of every successful parse are reported, or null for none.  Statistics
+     * are collected whenever a sink is set.
+     */
+    public void setMetricsSink(ParseMetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
     }
 
     public MicrodataRegistry getRegistry() {
@@ -0,0 +1,160 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the statements of a document, so that repeats can be dropped.  Used by {@link RDFMicrodataParser}
+ * when {@link RDFMicrodataParser#DEDUPLICATE} is set.
+ * <p>
+ * Each statement is reduced to a 64 bit fingerprint of its subject, predicate and object, kept in an open
+ * addressing table of longs.  Once the table holds {@code limit} fingerprints, further statements are recorded in
+ * a Bloom filter instead, sized for {@value #SPILL_FACTOR} times as many statements at {@value #BITS_PER_SPILLED}
+ * bits each.  The filter may take a new statement for a repeat, roughly once in five million statements.
+ * Once it is full, repeats of the statements it holds are still dropped, but new statements are passed on
+ * without being recorded, so their repeats are passed on too.  Memory is therefore bounded by
+ * {@code 32 * limit} bytes for the table and {@code 16 * limit} for the filter.
+ */
+final class StatementDeduplicator {
+    static final int SPILL_FACTOR = 4;
+    static final int BITS_PER_SPILLED = 32;
+    private static final int HASH_FUNCTIONS = 22;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int limit;
+    private final Hash64 hash = new Hash64();
+    /**
+     * Fingerprints, with 0 marking an empty slot.  Kept at most half full.
+     */
+    private long[] table = new long[INITIAL_CAPACITY];
+    private int size;
+    private long[] filter;
+    private int filterCount;
+
+    /**
+     * @param limit the number of statements to remember exactly
+     */
+    StatementDeduplicator(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.limit = limit;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true if the statement has not been seen in this document, and should be passed on
+     */
+    boolean add(Statement statement) {
+        long fingerprint = fingerprint(statement);
+        int mask = table.length - 1;
+        int slot = (int) fingerprint & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == fingerprint) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size < limit) {
+            table[slot] = fingerprint;
+            if (++size * 2 > table.length) {
+                grow();
+            }
+            return true;
+        }
+        return addToFilter(fingerprint);
+    }
+
+    /**
+     * Forget every statement, ready for the next document.  A table that grew large is released.
+     */
+    void clear() {
+        if (table.length > INITIAL_CAPACITY * 16) {
+            table = new long[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(table, 0);
+        }
+        size = 0;
+        filter = null;
+        filterCount = 0;
+    }
+
+    private boolean addToFilter(long fingerprint) {
+        if (filter == null) {
+            filter = new long[(int) Math.min(Integer.MAX_VALUE, ((long) limit * SPILL_FACTOR * BITS_PER_SPILLED + 63) / 64)];
+        }
+        // once full, statements are still checked, but new ones are not added
+        boolean full = filterCount >= limit * (long) SPILL_FACTOR;
+        // double hashing from the two halves of the fingerprint
+        long bits = filter.length * 64L;
+        int h1 = (int) fingerprint;
+        int h2 = (int) (fingerprint >>> 32) | 1;
+        boolean present = true;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((filter[word] & mask) == 0) {
+                present = false;
+                if (full) {
+                    break;
+                }
+                filter[word] |= mask;
+            }
+        }
+        if (!present && !full) {
+            filterCount++;
+        }
+        return !present;
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for (long fingerprint : old) {
+            if (fingerprint != 0) {
+                int slot = (int) fingerprint & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = fingerprint;
+            }
+        }
+    }
+
+    private long fingerprint(Statement statement) {
+        hash.reset();
+        addValue(statement.getSubject());
+        addValue(statement.getPredicate());
+        addValue(statement.getObject());
+        long fingerprint = hash.value();
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private void addValue(Value value) {
+        if (value instanceof URI) {
+            hash.add(1);
+            hash.add(value.stringValue());
+        } else if (value instanceof BNode) {
+            hash.add(2);
+            hash.add(value.stringValue());
+        } else {
+            Literal literal = (Literal) value;
+            hash.add(3);
+            hash.add(literal.getLabel());
+            String language = literal.getLanguage();
+            URI datatype = literal.getDatatype();
+            hash.add(language == null ? "" : language);
+            hash.add(datatype == null ? "" : datatype.stringValue());
+        }
+    }
+}
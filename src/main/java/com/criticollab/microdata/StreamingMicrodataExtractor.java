@@ -0,0 +1,462 @@
+package com.criticollab.microdata;
+
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Tag;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Extracts microdata from an HTML token stream without building a DOM for the whole document.
+ * <p>
+ * Only parts of the document that can contribute to items are kept as (detached) JSoup elements:
+ * subtrees rooted at an element with an itemscope attribute, and subtrees rooted at an element with an
+ * id, which an itemref might point to.  Everything else is seen once by the tokenizer and discarded.
+ * Top level items are handed to the parser as soon as they, and every element their itemrefs point to,
+ * have been closed, in document order.  Subtrees with ids are kept only if they contain an itemprop.
+ * <p>
+ * Without a limit, memory still grows with the document in two ways.  A subtree with an id and an itemprop is
+ * kept until the end of the document, since an itemref in any later item may point to it.  An item whose itemref
+ * names an id that has not been seen yet is kept, with every item after it, until the id appears or the document
+ * ends.  {@link RDFMicrodataParser#STREAMING_RETAINED_LIMIT} bounds the number of kept subtrees: when it is
+ * exceeded, subtrees with ids that no pending item can reach are dropped, oldest first, and then items waiting for
+ * ids that have not been seen are processed without them.  An itemref to a dropped subtree, or to an element
+ * further ahead than the limit allows, then finds nothing, unlike in DOM mode.  With a limit, the worst case is
+ * the limit's worth of subtrees, plus the subtrees still open, plus the id string of each element with an id, plus
+ * the longest run of text, which the tokenizer reads as one token.
+ * <p>
+ * The tree builder handles void elements and the common implied end tags (p, li, dt, dd, option and
+ * table cells), but not the rest of the HTML5 tree construction rules, so pages that rely on error
+ * recovery (such as content mis-nested in tables) may produce different results from the DOM mode.
+ */
+class StreamingMicrodataExtractor {
+    @SuppressWarnings("UnusedDeclaration")
+    private static Logger logger = LoggerFactory.getLogger(StreamingMicrodataExtractor.class);
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList(
+            "area", "base", "br", "col", "command", "embed", "hr", "img", "input", "keygen", "link", "meta",
+            "param", "source", "track", "wbr"));
+    private static final Set<String> CLOSES_P = new HashSet<>(Arrays.asList(
+            "address", "article", "aside", "blockquote", "details", "dialog", "dir", "div", "dl", "fieldset",
+            "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup",
+            "hr", "li", "main", "menu", "nav", "ol", "p", "pre", "section", "summary", "table", "ul"));
+    private static final Set<String> SCOPE_BOUNDARIES = new HashSet<>(Arrays.asList(
+            "applet", "button", "caption", "html", "marquee", "object", "table", "td", "template", "th"));
+    private static final Set<String> TABLE_SECTIONS = new HashSet<>(Arrays.asList("tbody", "thead", "tfoot"));
+    /**
+     * Stands in for an element with an id whose subtree has no properties. It is kept so that the first
+     * element with a given id still shadows later ones, without keeping the element itself.
+     */
+    private static final Element EMPTY = new Element(Tag.valueOf("div"), "");
+
+    private final RDFMicrodataParser parser;
+    private final Document document;
+    /**
+     * The first element with each id, in the order they were seen, or {@link #EMPTY} if it was not kept.
+     */
+    private final Map<String, Element> idIndex = new LinkedHashMap<>();
+    /**
+     * The open elements, innermost last.
+     */
+    private final List<Frame> stack = new ArrayList<>();
+    /**
+     * Top level items that have been started but not yet processed, in document order.
+     */
+    private final Deque<Element> pendingItems = new ArrayDeque<>();
+    /**
+     * Elements whose subtree may be reached again: pending top level items, and elements in idIndex.
+     */
+    private final Set<Element> retainedRoots = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+    private final Set<Element> openElements = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+    /**
+     * The position of each retained root in the document, so that properties found through itemref can be put in
+     * tree order as they are in DOM mode.
+     */
+    private final Map<Element, Integer> rootOrder = new IdentityHashMap<>();
+    private int rootCount;
+    /**
+     * What the first pending item is waiting for: an open Element, or the String id of an element that
+     * has not been seen yet.  Null if the first pending item should be checked again.
+     */
+    private Object blocker;
+    private boolean baseSet;
+    /**
+     * The number of retained roots that triggers trimming, or Integer.MAX_VALUE for no limit.
+     */
+    private final int retainedLimit;
+    /**
+     * The number of retained roots above which trimming is next tried; raised when trimming cannot free enough.
+     */
+    private int trimThreshold;
+    private final TokenCursor ids = new TokenCursor();
+
+    private static class Frame {
+        final String name;
+        /**
+         * The element, if this element is part of a kept subtree; otherwise null.
+         */
+        final Element element;
+        /**
+         * The value of the nearest lang attribute on this element or an ancestor, or null if there is none.
+         */
+        final String lang;
+        /**
+         * True if this element or a descendant has property names.
+         */
+        boolean hasProperties;
+
+        Frame(String name, Element element, String lang) {
+            this.name = name;
+            this.element = element;
+            this.lang = lang;
+        }
+    }
+
+    /**
+     * @param retainedLimit the number of kept subtrees above which references are given up, or 0 for no limit
+     */
+    StreamingMicrodataExtractor(RDFMicrodataParser parser, String baseURI, int retainedLimit) {
+        this.parser = parser;
+        this.document = new Document(baseURI);
+        this.retainedLimit = retainedLimit > 0 ? retainedLimit : Integer.MAX_VALUE;
+        this.trimThreshold = this.retainedLimit;
+    }
+
+    void extract(Reader reader) throws IOException, RDFParseException, RDFHandlerException {
+        HtmlTokenizer tokenizer = new HtmlTokenizer(reader);
+        parser.startDocument(document, new DocumentIndex(idIndex, rootOrder));
+        HtmlTokenizer.TokenType type;
+        while ((type = tokenizer.next()) != HtmlTokenizer.TokenType.EOF) {
+            switch (type) {
+                case START_TAG:
+                    startElement(tokenizer.tagName(), tokenizer.attributes(), tokenizer.isSelfClosing());
+                    break;
+                case END_TAG:
+                    endElement(tokenizer.tagName());
+                    break;
+                case TEXT:
+                    text(tokenizer.text());
+                    break;
+                default:
+                    break;
+            }
+            processReadyItems(false);
+            if (retainedRoots.size() > trimThreshold) {
+                trimRetained();
+            }
+        }
+        while (!stack.isEmpty()) {
+            pop();
+        }
+        processReadyItems(true);
+        parser.endDocument();
+    }
+
+    private void startElement(String name, Attributes attributes, boolean selfClosing) {
+        closeImpliedElements(name);
+        Frame parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        String lang = parent == null ? null : parent.lang;
+        if (attributes.hasKey("lang")) {
+            lang = attributes.get("lang");
+        }
+        if (name.equals("base") && !baseSet && attributes.hasKey("href")) {
+            Element base = new Element(Tag.valueOf(name), document.baseUri(), attributes);
+            String href = base.absUrl("href");
+            if (href.length() != 0) {
+                document.setBaseUri(href);
+                baseSet = true;
+            }
+        }
+        Element element = null;
+        if (parent != null && parent.element != null) {
+            element = new Element(Tag.valueOf(name), document.baseUri(), attributes);
+            parent.element.appendChild(element);
+        } else if (attributes.hasKey("itemscope") || attributes.hasKey("id")) {
+            element = new Element(Tag.valueOf(name), document.baseUri(), attributes);
+            // the ancestors of a detached subtree are lost, so make its language explicit
+            if (lang != null && !attributes.hasKey("lang")) {
+                element.attr("lang", lang);
+            }
+            rootOrder.put(element, rootCount++);
+        }
+        if (element != null) {
+            openElements.add(element);
+            if (RDFMicrodataParser.isTopLevelItem(element)) {
+                pendingItems.add(element);
+                retainedRoots.add(element);
+            }
+            String id = element.id();
+            if (id.length() > 0 && !idIndex.containsKey(id)) {
+                idIndex.put(id, element);
+                retainedRoots.add(element);
+                if (id.equals(blocker)) {
+                    blocker = element;
+                }
+            }
+        }
+        stack.add(new Frame(name, element, lang));
+        if (selfClosing || VOID_ELEMENTS.contains(name)) {
+            pop();
+        }
+    }
+
+    private void endElement(String name) {
+        if (name.equals("html") || name.equals("body")) {
+            // keep trailing content in the body, as HTML does
+            return;
+        }
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            if (stack.get(i).name.equals(name)) {
+                while (stack.size() > i) {
+                    pop();
+                }
+                return;
+            }
+        }
+    }
+
+    private void text(String text) {
+        if (!stack.isEmpty()) {
+            Frame top = stack.get(stack.size() - 1);
+            if (top.element != null) {
+                top.element.appendChild(new TextNode(text, document.baseUri()));
+            }
+        }
+    }
+
+    private void closeImpliedElements(String name) {
+        switch (name) {
+            case "li":
+                closeInScope("li", "ol", "ul");
+                break;
+            case "dt":
+            case "dd":
+                closeInScope("dt", "dl");
+                closeInScope("dd", "dl");
+                break;
+            case "option":
+                closeInScope("option", "select");
+                break;
+            case "tr":
+                closeInScope("tr", "table");
+                break;
+            case "td":
+            case "th":
+                closeInScope("td", "tr", "table");
+                closeInScope("th", "tr", "table");
+                break;
+            default:
+                if (TABLE_SECTIONS.contains(name)) {
+                    for (String section : TABLE_SECTIONS) {
+                        closeInScope(section, "table");
+                    }
+                }
+                break;
+        }
+        if (CLOSES_P.contains(name)) {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                String open = stack.get(i).name;
+                if (open.equals("p")) {
+                    while (stack.size() > i) {
+                        pop();
+                    }
+                    return;
+                }
+                if (SCOPE_BOUNDARIES.contains(open)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the innermost open element called name, unless one of the boundary elements is open inside it.
+     */
+    private void closeInScope(String name, String... boundaries) {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String open = stack.get(i).name;
+            if (open.equals(name)) {
+                while (stack.size() > i) {
+                    pop();
+                }
+                return;
+            }
+            if (SCOPE_BOUNDARIES.contains(open)) {
+                return;
+            }
+            for (String boundary : boundaries) {
+                if (open.equals(boundary)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void pop() {
+        Frame frame = stack.remove(stack.size() - 1);
+        Element element = frame.element;
+        if (element == null) {
+            return;
+        }
+        openElements.remove(element);
+        if (blocker == element) {
+            blocker = null;
+        }
+        if (element.hasAttr("itemprop") || element.hasAttr("itemprop-reverse")) {
+            frame.hasProperties = true;
+        }
+        if (frame.hasProperties && !stack.isEmpty()) {
+            stack.get(stack.size() - 1).hasProperties = true;
+        }
+        String id = element.id();
+        if (!frame.hasProperties && id.length() > 0 && idIndex.get(id) == element) {
+            idIndex.put(id, EMPTY);
+            release(element);
+        }
+    }
+
+    /**
+     * Hand completed top level items to the parser, in document order.
+     *
+     * @param atEnd true when the whole document has been read, so that every item is complete
+     */
+    private void processReadyItems(boolean atEnd) throws RDFParseException, RDFHandlerException {
+        while (!pendingItems.isEmpty()) {
+            Element item = pendingItems.peek();
+            if (!atEnd) {
+                if (blocker == null) {
+                    blocker = findBlocker(item, false);
+                }
+                if (blocker != null) {
+                    return;
+                }
+            }
+            processFirstItem();
+        }
+    }
+
+    private void processFirstItem() throws RDFParseException, RDFHandlerException {
+        Element item = pendingItems.remove();
+        retainedRoots.remove(item);
+        parser.processTopLevelItem(item);
+        parser.forgetItems(retainedRoots);
+        // an item with an id may still be reached through itemref
+        if (idIndex.get(item.id()) != item) {
+            rootOrder.remove(item);
+        }
+    }
+
+    /**
+     * Stop keeping an element that is no longer reachable.
+     */
+    private void release(Element element) {
+        retainedRoots.remove(element);
+        rootOrder.remove(element);
+    }
+
+    /**
+     * Bring the number of retained roots down to three quarters of the limit, if possible.  Subtrees with ids that
+     * no pending item can reach are dropped first, oldest first; then items that are only waiting for ids that have
+     * not been seen are processed.
+     */
+    private void trimRetained() throws RDFParseException, RDFHandlerException {
+        int target = retainedLimit - retainedLimit / 4;
+        Set<Element> reachable = reachableFromPendingItems();
+        boolean dropped = false;
+        Iterator<Map.Entry<String, Element>> entries = idIndex.entrySet().iterator();
+        while (retainedRoots.size() > target && entries.hasNext()) {
+            Map.Entry<String, Element> entry = entries.next();
+            Element element = entry.getValue();
+            if (element != EMPTY && !reachable.contains(element) && !openElements.contains(element)) {
+                logger.debug("dropping element with id {} to stay within the retained limit", entry.getKey());
+                entry.setValue(EMPTY);
+                release(element);
+                dropped = true;
+            }
+        }
+        if (dropped) {
+            parser.forgetItems(retainedRoots);
+        }
+        while (retainedRoots.size() > target && !pendingItems.isEmpty()
+                && findBlocker(pendingItems.peek(), true) == null) {
+            logger.debug("processing item before the ids it refers to have been seen");
+            blocker = null;
+            processFirstItem();
+        }
+        // what is left is still being read, or reachable from it; try again once it has grown further
+        trimThreshold = Math.max(retainedLimit, retainedRoots.size() + Math.max(1, retainedLimit / 4));
+    }
+
+    /**
+     * @return the pending items, and every element in their subtrees or reachable from them through itemref.
+     */
+    private Set<Element> reachableFromPendingItems() {
+        Set<Element> reachable = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        Deque<Element> pending = new ArrayDeque<>(pendingItems);
+        while (!pending.isEmpty()) {
+            Element current = pending.remove();
+            if (!reachable.add(current)) {
+                continue;
+            }
+            if (current.hasAttr("itemref")) {
+                ids.reset(current.attr("itemref"));
+                while (ids.next()) {
+                    Element referenced = idIndex.get(ids.token());
+                    if (referenced != null && referenced != EMPTY) {
+                        pending.add(referenced);
+                    }
+                }
+            }
+            pending.addAll(current.children());
+        }
+        return reachable;
+    }
+
+    /**
+     * An item is complete if it has been closed, and so has every element reachable from it through itemref.
+     *
+     * @param ignoreMissingIds true to wait only for open elements, and not for ids that have not been seen
+     * @return null if item is complete, otherwise the open element or missing id that it is waiting for.
+     */
+    private Object findBlocker(Element item, boolean ignoreMissingIds) {
+        if (openElements.contains(item)) {
+            return item;
+        }
+        Set<Element> seen = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        Deque<Element> pending = new ArrayDeque<>();
+        pending.add(item);
+        while (!pending.isEmpty()) {
+            Element current = pending.remove();
+            if (!seen.add(current)) {
+                continue;
+            }
+            if (current.hasAttr("itemref")) {
+                ids.reset(current.attr("itemref"));
+                while (ids.next()) {
+                    String id = ids.token();
+                    Element referenced = idIndex.get(id);
+                    if (referenced == null) {
+                        if (ignoreMissingIds) {
+                            continue;
+                        }
+                        return id;
+                    }
+                    if (openElements.contains(referenced)) {
+                        return referenced;
+                    }
+                    pending.add(referenced);
+                }
+            }
+            pending.addAll(current.children());
+        }
+        return null;
+    }
+}
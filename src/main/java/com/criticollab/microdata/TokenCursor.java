@@ -0,0 +1,91 @@
+package com.criticollab.microdata;
+
+/**
+ * Walks the tokens of an attribute value that holds a set of space-separated tokens (itemtype, itemprop,
+ * itemprop-reverse and itemref), without splitting it into an array.  As in HTML, tokens are separated by
+ * any run of ASCII whitespace, and leading and trailing whitespace is ignored.
+ * <p>
+ * A cursor can be reset and reused for any number of values.  When a value holds a single token with no
+ * surrounding whitespace, which is the usual case, {@link #token()} returns the value itself.  Otherwise the
+ * token is compared in place with the tokens the cursor returned recently, and only copied if it is new.
+ */
+final class TokenCursor {
+    private static final int RECENT_TOKENS = 64;
+
+    /**
+     * Tokens recently copied out of values, by the hash of their characters.
+     */
+    private final String[] recent = new String[RECENT_TOKENS];
+    private String value = "";
+    private int tokenStart;
+    private int tokenEnd;
+
+    /**
+     * Start walking the tokens of value.
+     *
+     * @return this cursor
+     */
+    TokenCursor reset(String value) {
+        this.value = value;
+        tokenStart = 0;
+        tokenEnd = 0;
+        return this;
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return false if there are no more tokens.
+     */
+    boolean next() {
+        int length = value.length();
+        int i = tokenEnd;
+        while (i < length && HtmlTokenizer.isWhitespace(value.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            tokenStart = tokenEnd = length;
+            return false;
+        }
+        tokenStart = i;
+        while (i < length && !HtmlTokenizer.isWhitespace(value.charAt(i))) {
+            i++;
+        }
+        tokenEnd = i;
+        return true;
+    }
+
+    /**
+     * @return the current token.
+     */
+    String token() {
+        if (tokenStart == 0 && tokenEnd == value.length()) {
+            return value;
+        }
+        int hash = 0;
+        for (int i = tokenStart; i < tokenEnd; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (RECENT_TOKENS - 1);
+        int length = tokenEnd - tokenStart;
+        String cached = recent[slot];
+        if (cached != null && cached.length() == length && value.regionMatches(tokenStart, cached, 0, length)) {
+            return cached;
+        }
+        String token = value.substring(tokenStart, tokenEnd);
+        recent[slot] = token;
+        return token;
+    }
+
+    /**
+     * @return true if value contains at least one token.
+     */
+    static boolean hasTokens(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!HtmlTokenizer.isWhitespace(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
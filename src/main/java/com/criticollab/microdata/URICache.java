@@ -0,0 +1,119 @@
+package com.criticollab.microdata;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of the URIs used as predicates and types, keyed by namespace and local name,
+ * so that a property that appears on many pages is turned into a URI once rather than every time it is used.
+ * Looking up a URI does not build its string form.
+ * <p>
+ * When the cache holds its maximum number of entries, it is emptied and starts again. The URIs used on
+ * typical pages come from a few vocabularies, so they are soon cached again, and one-off URIs from unusual
+ * pages cannot fill the cache for good.
+ */
+public class URICache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final URICache SHARED = new URICache(ValueFactoryImpl.getInstance(), DEFAULT_MAXIMUM_SIZE);
+
+    private final ValueFactory valueFactory;
+    private final int maximumSize;
+    private final ConcurrentMap<String, ConcurrentMap<String, URI>> namespaces = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param valueFactory the factory used to create URIs that are not in the cache
+     * @param maximumSize  the number of URIs to hold before the cache is emptied
+     */
+    public URICache(ValueFactory valueFactory, int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.valueFactory = valueFactory;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return the cache shared by all parsers that use a {@link ValueFactoryImpl}.
+     */
+    public static URICache getSharedInstance() {
+        return SHARED;
+    }
+
+    /**
+     * Get the URI whose string form is namespace followed by localName.
+     *
+     * @param namespace the first part of the URI; may be empty if localName is the whole URI
+     * @throws IllegalArgumentException if the value factory rejects the URI
+     */
+    public URI getURI(String namespace, String localName) {
+        ConcurrentMap<String, URI> uris = namespaces.get(namespace);
+        if (uris != null) {
+            URI uri = uris.get(localName);
+            if (uri != null) {
+                hitCount.incrementAndGet();
+                return uri;
+            }
+        }
+        missCount.incrementAndGet();
+        URI uri = valueFactory.createURI(namespace.length() == 0 ? localName : namespace + localName);
+        if (size.incrementAndGet() > maximumSize) {
+            clear();
+            size.incrementAndGet();
+        }
+        if (uris == null) {
+            uris = new ConcurrentHashMap<>();
+            ConcurrentMap<String, URI> existing = namespaces.putIfAbsent(namespace, uris);
+            if (existing != null) {
+                uris = existing;
+            }
+        }
+        URI existing = uris.putIfAbsent(localName, uri);
+        if (existing != null) {
+            size.decrementAndGet();
+            return existing;
+        }
+        return uri;
+    }
+
+    public ValueFactory getValueFactory() {
+        return valueFactory;
+    }
+
+    /**
+     * @return the approximate number of URIs in the cache.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of lookups that found a cached URI.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of lookups that had to create a URI.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Discard all cached URIs. Statistics are not reset.
+     */
+    public void clear() {
+        namespaces.clear();
+        size.set(0);
+    }
+}
@@ -0,0 +1,176 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchingRDFHandlerTest {
+    private static final URI P = new URIImpl("http://example.org/p");
+
+    private static Statement statement(int i) {
+        return new StatementImpl(new URIImpl("http://example.org/s" + i), P, new URIImpl("http://example.org/o" + i));
+    }
+
+    @Test
+    public void testStatementsArePassedOnInOrder() throws Exception {
+        List<Statement> received = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+        StatementCollector collector = new StatementCollector(received) {
+            @Override
+            public void handleStatement(Statement st) {
+                // a slow sink
+                Thread.yield();
+                super.handleStatement(st);
+            }
+
+            @Override
+            public void handleNamespace(String prefix, String uri) {
+                events.add(prefix + " after " + getStatements().size());
+            }
+
+            @Override
+            public void endRDF() {
+                events.add("end");
+            }
+        };
+        BatchingRDFHandler handler = new BatchingRDFHandler(collector, 7, 2, null);
+        for (int document = 0; document < 2; document++) {
+            received.clear();
+            events.clear();
+            handler.startRDF();
+            List<Statement> sent = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                if (i == 10) {
+                    handler.handleNamespace("ex", "http://example.org/");
+                }
+                sent.add(statement(i));
+                handler.handleStatement(sent.get(i));
+            }
+            handler.endRDF();
+            assertEquals("every statement, including the last partial batch, in order", sent, received);
+            assertEquals("[ex after 10, end]", events.toString());
+        }
+    }
+
+    @Test
+    public void testHandlerExceptionIsThrownToTheParser() throws Exception {
+        final RDFHandlerException failure = new RDFHandlerException("disk full");
+        RDFHandlerBase failing = new RDFHandlerBase() {
+            int count;
+
+            @Override
+            public void handleStatement(Statement st) throws RDFHandlerException {
+                if (++count == 3) {
+                    throw failure;
+                }
+            }
+        };
+        StringBuilder html = new StringBuilder("<div itemscope>");
+        for (int i = 0; i < 10000; i++) {
+            html.append("<span itemprop='p'>").append(i).append("</span>");
+        }
+        html.append("</div>");
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new BatchingRDFHandler(failing, 2, 1, null));
+        try {
+            parser.parse(new StringReader(html.toString()), "http://example.org/");
+            fail("handler exception expected");
+        } catch (RDFHandlerException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testAbortedConsumerFinishesBeforeTheNextDocument() throws Exception {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final List<Statement> received = new ArrayList<>();
+        StatementCollector slow = new StatementCollector(received) {
+            @Override
+            public void startRDF() {
+                if (active.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                active.decrementAndGet();
+            }
+
+            @Override
+            public void handleStatement(Statement st) {
+                if (active.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleStatement(st);
+                active.decrementAndGet();
+            }
+        };
+        BatchingRDFHandler handler = new BatchingRDFHandler(slow, 1, 1, null);
+        handler.startRDF();
+        handler.handleStatement(statement(0));
+        handler.abort();
+        handler.startRDF();
+        handler.handleStatement(statement(1));
+        handler.endRDF();
+        assertTrue(received.contains(statement(1)));
+        assertFalse("the other handler was called from two threads at once", overlapped.get());
+    }
+
+    @Test
+    public void testFailedConsumerReleasesItsThread() throws Exception {
+        RDFHandlerBase failing = new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement st) throws RDFHandlerException {
+                throw new RDFHandlerException("disk full");
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BatchingRDFHandler handler = new BatchingRDFHandler(failing, 1, 1, executor);
+            handler.startRDF();
+            handler.handleStatement(statement(0));
+            // neither endRDF nor abort is called, as when the parse fails
+            Future<Boolean> next = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return true;
+                }
+            });
+            assertTrue("the consumer thread is free", next.get(10, TimeUnit.SECONDS));
+            try {
+                handler.handleStatement(statement(1));
+                handler.endRDF();
+                fail("handler exception expected");
+            } catch (RDFHandlerException e) {
+                assertEquals("disk full", e.getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.openrdf.rio.turtle.TurtleWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactStatementFormatTest {
+    private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+
+    private static byte[] write(List<Statement> statements) throws RDFHandlerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RDFWriter writer = Rio.createWriter(CompactStatementFormat.FORMAT, out);
+        writer.startRDF();
+        writer.handleNamespace("ex", "http://example.org/");
+        writer.handleComment("extracted");
+        for (Statement st : statements) {
+            writer.handleStatement(st);
+        }
+        writer.endRDF();
+        return out.toByteArray();
+    }
+
+    private static StatementCollector read(byte[] bytes) throws Exception {
+        RDFParser parser = Rio.createParser(CompactStatementFormat.FORMAT);
+        StatementCollector collector = new StatementCollector();
+        parser.setRDFHandler(collector);
+        parser.parse(new ByteArrayInputStream(bytes), "");
+        return collector;
+    }
+
+    @Test
+    public void testRoundTripOfValueKinds() throws Exception {
+        URI s = VF.createURI("http://example.org/s");
+        URI p = VF.createURI("http://example.org/p");
+        BNode b = VF.createBNode("b1");
+        char[] longLabel = new char[CompactStatementFormat.MAX_SHARED_LITERAL_LENGTH + 1];
+        Arrays.fill(longLabel, 'é');
+        List<Statement> statements = Arrays.asList(
+                VF.createStatement(s, p, VF.createLiteral("plain")),
+                VF.createStatement(s, p, VF.createLiteral("chat", "fr")),
+                VF.createStatement(s, p, VF.createLiteral("42", XMLSchema.INTEGER)),
+                VF.createStatement(s, p, VF.createLiteral("43", XMLSchema.INTEGER)),
+                VF.createStatement(s, p, VF.createLiteral(new String(longLabel))),
+                VF.createStatement(s, p, VF.createLiteral(new String(longLabel))),
+                VF.createStatement(s, p, b),
+                VF.createStatement(s, p, VF.createURI("urn:isbn:0451450523")),
+                VF.createStatement(s, p, VF.createURI("http://example.org/dir/")),
+                VF.createStatement(b, p, VF.createLiteral("😀 astral")),
+                VF.createStatement(s, p, s, VF.createURI("http://example.org/graph")));
+
+        StatementCollector collector = read(write(statements));
+        assertTrue(collector.getStatements().toString(), ModelUtil.equals(statements, collector.getStatements()));
+        assertEquals("http://example.org/", collector.getNamespaces().get("ex"));
+    }
+
+    @Test
+    public void testRoundTripOfW3CFixtures() throws Exception {
+        int checked = 0;
+        long compactBytes = 0;
+        long turtleBytes = 0;
+        for (int i = 1; i < 1000; i++) {
+            URL url = getClass().getResource(String.format("/w3c-microdata-rdf-tests/%04d.html", i));
+            if (url == null) {
+                continue;
+            }
+            List<Statement> extracted = new ArrayList<>();
+            RDFMicrodataParser parser = new RDFMicrodataParser();
+            parser.setRDFHandler(new StatementCollector(extracted));
+            try (InputStream in = url.openStream()) {
+                parser.parse(in, url.toString());
+            }
+            byte[] compact = write(extracted);
+
+            ByteArrayOutputStream turtle = new ByteArrayOutputStream();
+            TurtleWriter turtleWriter = new TurtleWriter(turtle);
+            turtleWriter.startRDF();
+            for (Statement st : extracted) {
+                turtleWriter.handleStatement(st);
+            }
+            turtleWriter.endRDF();
+
+            assertTrue(url.toString(), ModelUtil.equals(extracted, read(compact).getStatements()));
+            compactBytes += compact.length;
+            turtleBytes += turtle.size();
+            checked++;
+        }
+        assertTrue("fixtures found", checked > 0);
+        assertTrue(compactBytes + " bytes is smaller than " + turtleBytes + " bytes of turtle",
+                compactBytes < turtleBytes);
+    }
+
+    @Test
+    public void testTruncatedData() throws Exception {
+        URI s = VF.createURI("http://example.org/s");
+        byte[] bytes = write(Arrays.asList(VF.createStatement(s, s, s)));
+        try {
+            read(Arrays.copyOf(bytes, bytes.length - 1));
+            fail("truncated data accepted");
+        } catch (EOFException expected) {
+            // the end record is missing
+        }
+        try {
+            read("not compact".getBytes("US-ASCII"));
+            fail("bad header accepted");
+        } catch (RDFParseException expected) {
+            // the magic bytes do not match
+        }
+    }
+
+    private static byte[] record(int... bytes) {
+        byte[] data = new byte[CompactStatementFormat.MAGIC.length + 1 + bytes.length];
+        System.arraycopy(CompactStatementFormat.MAGIC, 0, data, 0, CompactStatementFormat.MAGIC.length);
+        data[CompactStatementFormat.MAGIC.length] = CompactStatementFormat.VERSION;
+        for (int i = 0; i < bytes.length; i++) {
+            data[CompactStatementFormat.MAGIC.length + 1 + i] = (byte) bytes[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void testCorruptData() throws Exception {
+        byte[][] corrupt = {
+                // a reference that would be negative as an int
+                record(CompactStatementFormat.STATEMENT, 0xff, 0xff, 0xff, 0xff, 0x0f),
+                // a varint with too many bytes
+                record(CompactStatementFormat.COMMENT, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01),
+                // a reference beyond the dictionary
+                record(CompactStatementFormat.STATEMENT, 5),
+                // a URI in a namespace that has not been defined
+                record(CompactStatementFormat.STATEMENT, 0, CompactStatementFormat.URI, 0x7f),
+        };
+        for (byte[] bytes : corrupt) {
+            try {
+                read(bytes);
+                fail("corrupt data accepted: " + Arrays.toString(bytes));
+            } catch (RDFParseException expected) {
+                // rejected
+            }
+        }
+        try {
+            // a huge string length is not allocated before the data runs out
+            read(record(CompactStatementFormat.COMMENT, 0xff, 0xff, 0xff, 0xff, 0x07, 'x'));
+            fail("truncated string accepted");
+        } catch (EOFException expected) {
+            // the string is cut short
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReaderIsRejected() throws IOException, RDFParseException, RDFHandlerException {
+        new CompactStatementParser().parse(new StringReader(""), "");
+    }
+}
@@ -0,0 +1,65 @@
+package com.criticollab.microdata;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentIndexTest {
+
+    @Test
+    public void testIndexInTreeOrder() {
+        Document document = Jsoup.parse("<div id='a' class='first' itemscope>"
+                + "<span id='b' itemprop='p1'></span>"
+                + "<div itemprop='p2' itemscope><i itemprop-reverse='r'></i></div>"
+                + "</div>"
+                + "<p id='a' class='second'></p><p id='A'></p>", "http://example.org/");
+        DocumentIndex index = DocumentIndex.build(document);
+
+        assertEquals("first element with id wins", "first", index.getElementById("a").className());
+        assertEquals("ids are case sensitive", "p", index.getElementById("A").tagName());
+        assertEquals("nested id", "span", index.getElementById("b").tagName());
+        assertNull("missing id", index.getElementById("c"));
+
+        List<Element> scopes = index.getItemScopes();
+        assertEquals("itemscope count", 2, scopes.size());
+        assertEquals("outer scope first", "a", scopes.get(0).id());
+        assertEquals("inner scope second", "p2", scopes.get(1).attr("itemprop"));
+        assertEquals("only the outer scope is top level", scopes.subList(0, 1), index.getTopLevelItems());
+
+        List<Element> properties = index.getItemProperties();
+        assertEquals("property count", 3, properties.size());
+        assertEquals("span", properties.get(0).tagName());
+        assertEquals("div", properties.get(1).tagName());
+        assertEquals("i", properties.get(2).tagName());
+    }
+
+    @Test
+    public void testTopLevelItemsOfW3CFixtures() throws IOException {
+        int checked = 0;
+        for (int i = 1; i < 1000; i++) {
+            URL url = getClass().getResource(String.format("/w3c-microdata-rdf-tests/%04d.html", i));
+            if (url == null) {
+                continue;
+            }
+            Document document;
+            try (InputStream in = url.openStream()) {
+                document = Jsoup.parse(in, "UTF-8", url.toString());
+            }
+            // the selector the parser used before top level items were collected by the index
+            List<Element> expected = document.select("[itemscope]:not([itemprop]:not([itemprop-reverse]))");
+            assertEquals(url.toString(), expected, DocumentIndex.build(document).getTopLevelItems());
+            checked++;
+        }
+        assertTrue("fixtures found", checked > 0);
+    }
+}
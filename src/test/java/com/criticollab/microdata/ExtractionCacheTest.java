@@ -0,0 +1,116 @@
+package com.criticollab.microdata;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExtractionCacheTest {
+    private static final String BASE = "http://example.org/page";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer page(int n) {
+        String html = "<div itemscope itemtype='http://schema.org/Product'><span itemprop='name'>Product " + n
+                + "</span><span itemprop='offers' itemscope><meta itemprop='price' content='" + n + "'></span></div>";
+        return ByteBuffer.wrap(html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Statement> extract(ExtractionCache cache, ByteBuffer bytes, String baseURI) throws Exception {
+        List<Statement> statements = new ArrayList<>();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(statements));
+        if (cache == null) {
+            parser.parse(bytes, null, baseURI);
+        } else {
+            cache.parse(parser, bytes, null, baseURI);
+        }
+        return statements;
+    }
+
+    @Test
+    public void testRepeatedPageIsReplayed() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        List<Statement> expected = extract(null, page(1), BASE);
+        try (ExtractionCache cache = new ExtractionCache(directory, 1 << 20, 1 << 16)) {
+            assertTrue(ModelUtil.equals(expected, extract(cache, page(1), BASE)));
+            assertTrue(ModelUtil.equals(expected, extract(cache, page(1), BASE)));
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(0.5, cache.getHitRate(), 0);
+            assertEquals(page(1).remaining(), cache.getBytesSaved());
+
+            extract(cache, page(1), "http://example.org/mirror");
+            assertEquals("the base URI is part of the key", 2, cache.getMissCount());
+        }
+        try (ExtractionCache reopened = new ExtractionCache(directory, 1 << 20, 1 << 16)) {
+            assertEquals(2, reopened.getResultCount());
+            assertTrue(ModelUtil.equals(expected, extract(reopened, page(1), BASE)));
+            assertEquals("results survive reopening", 1, reopened.getHitCount());
+        }
+    }
+
+    @Test
+    public void testSettingsArePartOfTheKey() throws Exception {
+        try (ExtractionCache cache = new ExtractionCache(folder.newFolder().toPath(), 1 << 20, 1 << 16)) {
+            extract(cache, page(1), BASE);
+            RDFMicrodataParser parser = new RDFMicrodataParser();
+            parser.getParserConfig().set(RDFMicrodataParser.MAX_LITERAL_LENGTH, 3);
+            parser.setRDFHandler(new StatementCollector());
+            cache.parse(parser, page(1), null, BASE);
+            assertEquals(2, cache.getMissCount());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSegmentsAreEvicted() throws Exception {
+        int segmentSize = 1024;
+        Path directory = folder.newFolder().toPath();
+        try (ExtractionCache cache = new ExtractionCache(directory, 3 * segmentSize, segmentSize)) {
+            List<Statement> kept = extract(cache, page(0), BASE);
+            for (int i = 1; i < 100; i++) {
+                extract(cache, page(i), BASE);
+                assertTrue("a page that is used keeps its segment",
+                        ModelUtil.equals(kept, extract(cache, page(0), BASE)));
+                assertTrue(cache.getSize() <= 3 * segmentSize);
+            }
+            assertEquals(99, cache.getHitCount());
+            assertTrue(cache.getResultCount() < 100);
+            File[] files = directory.toFile().listFiles();
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            assertTrue("segment files stay within the limit", total <= 3 * segmentSize);
+        }
+    }
+
+    @Test
+    public void testDirectoryIsLocked() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        ExtractionCache cache = new ExtractionCache(directory, 1 << 20, 1 << 16);
+        try {
+            new ExtractionCache(directory, 1 << 20, 1 << 16);
+            fail("second cache opened on the same directory");
+        } catch (IOException expected) {
+            // in use
+        } finally {
+            cache.close();
+        }
+    }
+}
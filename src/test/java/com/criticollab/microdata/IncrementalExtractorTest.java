@@ -0,0 +1,151 @@
+package com.criticollab.microdata;
+
+import org.jsoup.Jsoup;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalExtractorTest {
+    private static final String BASE = "http://example.org/page";
+
+    private static String page(String price, String footerClass, String publisher) {
+        return "<div itemscope itemtype='http://schema.org/Product' itemid='http://example.org/p1'>"
+                + "<span itemprop='name'>Kettle</span><span itemprop='price'>" + price + "</span></div>"
+                + "<div itemscope itemtype='http://schema.org/Product' itemid='http://example.org/p2'>"
+                + "<span itemprop='name'>Toaster</span></div>"
+                + "<div itemscope itemtype='http://schema.org/Article' itemref='footer'>"
+                + "<span itemprop='headline'>News</span></div>"
+                + "<footer id='footer' class='" + footerClass + "'><span itemprop='publisher'>" + publisher
+                + "</span></footer>";
+    }
+
+    private static IncrementalExtractor.Result extract(IncrementalExtractor extractor, String html,
+                                                       IncrementalExtractor.Snapshot previous, List<Statement> handled) throws Exception {
+        return extractor.extract(Jsoup.parse(html, BASE), previous, new StatementCollector(handled));
+    }
+
+    private static List<Statement> fullExtraction(String html) throws Exception {
+        List<Statement> statements = new ArrayList<>();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(statements));
+        parser.parse(new StringReader(html), BASE);
+        return statements;
+    }
+
+    @Test
+    public void testUnchangedItemsAreReplayed() throws Exception {
+        IncrementalExtractor extractor = new IncrementalExtractor();
+        String html = page("10", "a", "ACME");
+        List<Statement> handled = new ArrayList<>();
+        IncrementalExtractor.Result first = extract(extractor, html, null, handled);
+        assertTrue(ModelUtil.equals(fullExtraction(html), handled));
+        assertEquals(3, first.getEvaluatedItemCount());
+        assertEquals(handled, first.getAdded());
+        assertTrue(first.getRemoved().isEmpty());
+
+        // the class of the footer is not read by extraction
+        List<Statement> replayed = new ArrayList<>();
+        IncrementalExtractor.Result second = extract(extractor, page("10", "b", "ACME"), first.getSnapshot(), replayed);
+        assertEquals(3, second.getReplayedItemCount());
+        assertEquals("replayed statements are those first generated", handled, replayed);
+        assertTrue(second.getAdded().isEmpty());
+        assertTrue(second.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testChangedItemIsEvaluatedAndDiffed() throws Exception {
+        IncrementalExtractor extractor = new IncrementalExtractor();
+        IncrementalExtractor.Snapshot snapshot = extract(extractor, page("10", "a", "ACME"), null,
+                new ArrayList<Statement>()).getSnapshot();
+
+        String changed = page("12", "a", "ACME");
+        List<Statement> handled = new ArrayList<>();
+        IncrementalExtractor.Result result = extract(extractor, changed, snapshot, handled);
+        assertEquals(2, result.getReplayedItemCount());
+        assertEquals(1, result.getEvaluatedItemCount());
+        assertTrue(ModelUtil.equals(fullExtraction(changed), handled));
+        assertEquals(1, result.getAdded().size());
+        assertEquals("12", result.getAdded().get(0).getObject().stringValue());
+        assertEquals(1, result.getRemoved().size());
+        assertEquals("10", result.getRemoved().get(0).getObject().stringValue());
+    }
+
+    @Test
+    public void testChangeInReferencedSubtreeIsSeen() throws Exception {
+        IncrementalExtractor extractor = new IncrementalExtractor();
+        IncrementalExtractor.Snapshot snapshot = extract(extractor, page("10", "a", "ACME"), null,
+                new ArrayList<Statement>()).getSnapshot();
+
+        String changed = page("10", "a", "Initech");
+        List<Statement> handled = new ArrayList<>();
+        IncrementalExtractor.Result result = extract(extractor, changed, snapshot, handled);
+        assertEquals("the products are replayed", 2, result.getReplayedItemCount());
+        assertTrue(ModelUtil.equals(fullExtraction(changed), handled));
+    }
+
+    @Test
+    public void testItemsSharingANestedItemAreEvaluated() throws Exception {
+        String html = "<div itemscope itemref='org'><span itemprop='name'>A</span></div>"
+                + "<div itemscope itemref='org'><span itemprop='name'>B</span></div>"
+                + "<div itemscope><span itemprop='name'>C</span></div>"
+                + "<p id='org' itemprop='publisher' itemscope><span itemprop='name'>ACME</span></p>";
+        IncrementalExtractor extractor = new IncrementalExtractor();
+        IncrementalExtractor.Snapshot snapshot = extract(extractor, html, null, new ArrayList<Statement>()).getSnapshot();
+        List<Statement> handled = new ArrayList<>();
+        IncrementalExtractor.Result result = extract(extractor, html, snapshot, handled);
+        assertEquals("only the item without a shared publisher is replayed", 1, result.getReplayedItemCount());
+        assertTrue(ModelUtil.equals(fullExtraction(html), handled));
+    }
+
+    @Test
+    public void testIdenticalItemsKeepTheirOwnSubjects() throws Exception {
+        String html = "<div itemscope><span itemprop='name'>same</span></div>"
+                + "<div itemscope><span itemprop='name'>same</span></div>";
+        IncrementalExtractor extractor = new IncrementalExtractor();
+        IncrementalExtractor.Snapshot snapshot = extract(extractor, html, null, new ArrayList<Statement>()).getSnapshot();
+        assertTrue(snapshot.getFingerprint(0) != snapshot.getFingerprint(1));
+        List<Statement> handled = new ArrayList<>();
+        assertEquals(2, extract(extractor, html, snapshot, handled).getReplayedItemCount());
+        Set<Resource> subjects = new HashSet<>();
+        for (Statement st : handled) {
+            subjects.add(st.getSubject());
+        }
+        assertEquals(2, subjects.size());
+    }
+
+    @Test
+    public void testSharedStatementsSurviveDeduplication() throws Exception {
+        String before = "<div itemscope itemid='http://example.org/p'><span itemprop='name'>Kettle</span>"
+                + "<span itemprop='price'>10</span></div>"
+                + "<div itemscope itemid='http://example.org/p'><span itemprop='name'>Kettle</span>"
+                + "<span itemprop='colour'>red</span></div>";
+        String after = before.replace("10", "12").replaceFirst("Kettle", "Jug");
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.DEDUPLICATE, true);
+        IncrementalExtractor extractor = new IncrementalExtractor(parser);
+
+        List<Statement> handled = new ArrayList<>();
+        IncrementalExtractor.Snapshot snapshot = extract(extractor, before, null, handled).getSnapshot();
+        assertEquals("the shared name is handled once", new HashSet<>(handled).size(), handled.size());
+        assertEquals("but recorded for both items", 2, snapshot.getItemStatements(1).size());
+
+        // the first item no longer generates the shared name, so the replayed second item must
+        handled = new ArrayList<>();
+        IncrementalExtractor.Result result = extract(extractor, after, snapshot, handled);
+        assertEquals(1, result.getReplayedItemCount());
+        assertEquals(new HashSet<>(handled).size(), handled.size());
+        assertTrue(ModelUtil.equals(fullExtraction(after), handled));
+        assertEquals("the shared name is not removed", 1, result.getRemoved().size());
+    }
+}
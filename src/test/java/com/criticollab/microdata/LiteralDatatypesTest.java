@@ -0,0 +1,112 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.openrdf.model.datatypes.XMLDatatypeUtil.*;
+
+/**
+ * Checks that LiteralDatatypes chooses the same datatypes as trying each XMLDatatypeUtil validator in turn.
+ */
+public class LiteralDatatypesTest {
+    private static final List<String> TIME_VALUES = Arrays.asList(
+            "2014-05-05", "2014-05-05Z", "2014-05-05+05:30", "2014-05-05-05:00", "-2014-05-05", "12014-05-05",
+            "2014-5-5", "2014-05-05 ", " 2014-05-05", "\t2014-05-05\n", "2014-05-05T", "2014-05-05Z05:00",
+            "10:30:00", "10:30:00.5", "10:30:00Z", "10:30:00-08:00", "10:30", "1:30:00", "24:00:00",
+            "2014-05-05T10:30:00", "2014-05-05T10:30:00.123Z", "2014-05-05T10:30:00+01:00", "2014-05-05T10:30",
+            "2014-05", "2014-05Z", "2014-05-05:00", "-2014-05", "2014-13",
+            "2014", "2014Z", "2014+01:00", "-2014", "+2014", "14", "201",
+            "P1Y", "P1Y2M3DT4H5M6.7S", "-P1D", "PT5M", "P", "PT", "P1H", "1Y",
+            "", " ", "May 5, 2014", "yesterday", "2014-05-05t10:30:00", "2014-05-05 10:30:00", "::", "-", "--05",
+            "-05:00", "2014-05-05-", "2014--05", "T10:30:00", "10:30:00T");
+    private static final List<String> NUMBER_VALUES = Arrays.asList(
+            "0", "42", "-42", "+42", "007", "123456789012345678901234567890", " 42", "42 ", "4 2", "+", "-", "",
+            "1.5", ".5", "5.", "-1.5e10", "1E-3", "1e", "e1", "1.5.5", "INF", "-INF", "+INF", "NaN", "nan", "Infinity",
+            "1d", "1f", "0x10", "1,000", "1_000", "1.7976931348623157E309", " 1.5 ", "1 .5", "abc",
+            "123456789012345678e91234567890");
+
+    private static URI timeDatatypeByChain(String value) {
+        URI[] chain = {XMLSchema.DATE, XMLSchema.TIME, XMLSchema.DATETIME, XMLSchema.GYEARMONTH, XMLSchema.GYEAR,
+                XMLSchema.DURATION};
+        return firstValid(value, chain);
+    }
+
+    private static URI numberDatatypeByChain(String value) {
+        return firstValid(value, new URI[]{XMLSchema.INTEGER, XMLSchema.DOUBLE});
+    }
+
+    /**
+     * Try the validators in turn, taking one that throws to reject the value.
+     */
+    private static URI firstValid(String value, URI[] chain) {
+        for (URI datatype : chain) {
+            try {
+                if (isValidValue(value, datatype)) {
+                    return datatype;
+                }
+            } catch (RuntimeException e) {
+                // not this datatype
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the values, and random strings made from the characters the classifiers look at.
+     */
+    private static List<String> withRandomValues(List<String> values, String alphabet) {
+        List<String> result = new ArrayList<>(values);
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder value = new StringBuilder();
+            if (random.nextBoolean()) {
+                // mutate a known value, so that nearly-valid values are covered
+                value.append(values.get(random.nextInt(values.size())));
+                int pos = random.nextInt(value.length() + 1);
+                value.insert(pos, alphabet.charAt(random.nextInt(alphabet.length())));
+                if (random.nextBoolean() && value.length() > 1) {
+                    value.deleteCharAt(random.nextInt(value.length()));
+                }
+            } else {
+                int length = random.nextInt(12);
+                for (int j = 0; j < length; j++) {
+                    value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            }
+            result.add(value.toString());
+        }
+        return result;
+    }
+
+    @Test
+    public void testTimeDatatypeMatchesValidatorChain() {
+        for (String value : withRandomValues(TIME_VALUES, "0123456789012345-:+.TZPYMDHS x")) {
+            assertEquals("[" + value + "]", timeDatatypeByChain(value), LiteralDatatypes.timeDatatype(value));
+        }
+    }
+
+    @Test
+    public void testNumberDatatypeMatchesValidatorChain() {
+        for (String value : withRandomValues(NUMBER_VALUES, "01234567890123456789+-.eEINFa x")) {
+            assertEquals("[" + value + "]", numberDatatypeByChain(value), LiteralDatatypes.numberDatatype(value));
+        }
+    }
+
+    @Test
+    public void testCommonValues() {
+        assertEquals(XMLSchema.DATE, LiteralDatatypes.timeDatatype("2014-05-05"));
+        assertEquals(XMLSchema.DATETIME, LiteralDatatypes.timeDatatype("2014-05-05T10:30:00Z"));
+        assertEquals(XMLSchema.DURATION, LiteralDatatypes.timeDatatype("PT1H30M"));
+        assertEquals(null, LiteralDatatypes.timeDatatype("May 5th"));
+        assertEquals(XMLSchema.INTEGER, LiteralDatatypes.numberDatatype("-12"));
+        assertEquals(XMLSchema.DOUBLE, LiteralDatatypes.numberDatatype("4.5"));
+        assertEquals(null, LiteralDatatypes.numberDatatype("4.5 stars"));
+    }
+}
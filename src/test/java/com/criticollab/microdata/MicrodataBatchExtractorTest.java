@@ -0,0 +1,161 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MicrodataBatchExtractorTest {
+    private static final String PAGE = "<html><body><div itemscope itemtype='http://schema.org/Person'>"
+            + "<span itemprop='name'>Person %d</span></div></body></html>";
+
+    private static MicrodataBatchExtractor.Source page(int i) {
+        byte[] bytes = String.format(PAGE, i).getBytes(StandardCharsets.UTF_8);
+        return new MicrodataBatchExtractor.Source(new ByteArrayInputStream(bytes), "http://example.org/" + i);
+    }
+
+    private static MicrodataBatchExtractor.Source brokenPage(int i) {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        return new MicrodataBatchExtractor.Source(in, "http://example.org/" + i);
+    }
+
+    @Test
+    public void testPerDocumentHandlersAndFailures() throws InterruptedException {
+        List<MicrodataBatchExtractor.Source> sources = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sources.add(i % 10 == 3 ? brokenPage(i) : page(i));
+        }
+        final Map<String, List<Statement>> output = new ConcurrentHashMap<>();
+        final Map<String, Exception> failures = new ConcurrentHashMap<>();
+        MicrodataBatchExtractor.Result result;
+        try (MicrodataBatchExtractor extractor = new MicrodataBatchExtractor(4, 2)) {
+            result = extractor.extract(sources.iterator(), new MicrodataBatchExtractor.Listener() {
+                @Override
+                public RDFHandler getHandler(MicrodataBatchExtractor.Source source) {
+                    List<Statement> statements = new ArrayList<>();
+                    output.put(source.getBaseURI(), statements);
+                    return new StatementCollector(statements);
+                }
+
+                @Override
+                public void documentCompleted(MicrodataBatchExtractor.Source source) {
+                }
+
+                @Override
+                public void documentFailed(MicrodataBatchExtractor.Source source, Exception e) {
+                    failures.put(source.getBaseURI(), e);
+                }
+            });
+        }
+        assertEquals("completed", 45, result.getCompleted());
+        assertEquals("failed", 5, result.getFailed());
+        assertEquals("failures reported", 5, failures.size());
+        assertTrue(failures.containsKey("http://example.org/13"));
+        for (int i = 0; i < 50; i++) {
+            if (i % 10 != 3) {
+                assertEquals("statements for page " + i, 2, output.get("http://example.org/" + i).size());
+            }
+        }
+    }
+
+    @Test
+    public void testSharedHandlerAndBackpressure() throws Exception {
+        final int documents = 100;
+        final AtomicInteger taken = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Iterator<MicrodataBatchExtractor.Source> sources = new Iterator<MicrodataBatchExtractor.Source>() {
+            @Override
+            public boolean hasNext() {
+                return taken.get() < documents;
+            }
+
+            @Override
+            public MicrodataBatchExtractor.Source next() {
+                int inFlight = taken.incrementAndGet() - finished.get();
+                if (inFlight > maxInFlight.get()) {
+                    maxInFlight.set(inFlight);
+                }
+                return page(taken.get());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        LinkedHashModel model = new LinkedHashModel();
+        StatementCollector shared = new StatementCollector(model);
+        shared.startRDF();
+        try (MicrodataBatchExtractor extractor = new MicrodataBatchExtractor(2, 3)) {
+            extractor.extract(sources, new MicrodataBatchExtractor.SharedHandlerListener(shared) {
+                @Override
+                public void documentCompleted(MicrodataBatchExtractor.Source source) throws RDFHandlerException {
+                    super.documentCompleted(source);
+                    finished.incrementAndGet();
+                }
+            });
+        }
+        shared.endRDF();
+        assertEquals("all statements", documents * 2, model.size());
+        assertTrue("at most threads + queueCapacity documents open: " + maxInFlight.get(), maxInFlight.get() <= 5);
+    }
+
+    @Test
+    public void testFailingSharedHandlerIsCountedOnce() throws Exception {
+        List<MicrodataBatchExtractor.Source> sources = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sources.add(page(i));
+        }
+        final AtomicInteger completedCalls = new AtomicInteger();
+        final AtomicInteger failedCalls = new AtomicInteger();
+        RDFHandler shared = new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement st) throws RDFHandlerException {
+                throw new RDFHandlerException("disk full");
+            }
+        };
+        MicrodataBatchExtractor.Result result;
+        try (MicrodataBatchExtractor extractor = new MicrodataBatchExtractor(2, 2)) {
+            result = extractor.extract(sources.iterator(), new MicrodataBatchExtractor.SharedHandlerListener(shared) {
+                @Override
+                public void documentCompleted(MicrodataBatchExtractor.Source source) throws RDFHandlerException {
+                    completedCalls.incrementAndGet();
+                    super.documentCompleted(source);
+                }
+
+                @Override
+                public void documentFailed(MicrodataBatchExtractor.Source source, Exception e) {
+                    failedCalls.incrementAndGet();
+                    super.documentFailed(source, e);
+                }
+            });
+        }
+        assertEquals("completed", 0, result.getCompleted());
+        assertEquals("failed", 10, result.getFailed());
+        assertEquals("documentCompleted called for each parsed document", 10, completedCalls.get());
+        assertEquals("documentFailed not called as well", 0, failedCalls.get());
+    }
+}
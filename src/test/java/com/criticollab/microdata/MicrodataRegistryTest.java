@@ -1,8 +1,23 @@
 package com.criticollab.microdata;
 
 import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 public class MicrodataRegistryTest {
 
@@ -10,4 +25,113 @@ public class MicrodataRegistryTest {
            MicrodataRegistry registry = new MicrodataRegistry();
     }
 
-}
\ No newline at end of file
+    @Test public void testRegistriesAreIndependent() throws IOException {
+        MicrodataRegistry defaultRegistry = new MicrodataRegistry();
+        MicrodataRegistry testRegistry = new MicrodataRegistry(getClass().getResource("/w3c-microdata-rdf-tests/test-registry.json"));
+        assertNotNull("schema.org in default registry", defaultRegistry.match("http://schema.org/Book"));
+        assertNull("schema.org not in test registry", testRegistry.match("http://schema.org/Book"));
+        assertNotNull("expansion in test registry", testRegistry.match("http://expansion/Thing"));
+        assertNull("expansion not in default registry", defaultRegistry.match("http://expansion/Thing"));
+    }
+
+    @Test public void testVersionDependsOnContents() throws IOException {
+        URL testRegistryURL = getClass().getResource("/w3c-microdata-rdf-tests/test-registry.json");
+        String version = new MicrodataRegistry(testRegistryURL).getVersion();
+        assertEquals("same contents, same version", version, new MicrodataRegistry(testRegistryURL).getVersion());
+        assertNotEquals(version, new MicrodataRegistry().getVersion());
+    }
+
+    @Test public void testVersionFollowsAddedProperties() {
+        MicrodataRegistry.RegistryEntry entry = new MicrodataRegistry.RegistryEntry("http://example.org/");
+        MicrodataRegistry registry = new MicrodataRegistry(Collections.singletonList(entry));
+        String version = registry.getVersion();
+        entry.addProperty("a", attributes("subPropertyOf", "http://example.org/b"));
+        assertNotEquals("version changes with the entry", version, registry.getVersion());
+    }
+
+    @Test public void testMatchReturnsLongestPrefix() {
+        MicrodataRegistry registry = new MicrodataRegistry(Arrays.asList(
+                new MicrodataRegistry.RegistryEntry("http://example.org/"),
+                new MicrodataRegistry.RegistryEntry("http://example.org/vocab/"),
+                new MicrodataRegistry.RegistryEntry("http://example.org/vocab/v2#")));
+        assertEquals("longest prefix wins", "http://example.org/vocab/", registry.match("http://example.org/vocab/Thing").getPrefixURI());
+        assertEquals("deepest prefix wins", "http://example.org/vocab/v2#", registry.match("http://example.org/vocab/v2#Thing").getPrefixURI());
+        assertEquals("shorter prefix when longer does not match", "http://example.org/", registry.match("http://example.org/other/Thing").getPrefixURI());
+        assertEquals("type equal to prefix", "http://example.org/vocab/", registry.match("http://example.org/vocab/").getPrefixURI());
+        assertNull("no matching prefix", registry.match("http://example.com/vocab/Thing"));
+        assertNull("type shorter than any prefix", registry.match("http://example"));
+    }
+
+    private static MicrodataRegistry.PropertyAttributes attributes(String attr, Object value) {
+        return new MicrodataRegistry.PropertyAttributes(Collections.singletonMap(attr, value));
+    }
+
+    private static URI[] uris(String... uris) {
+        URI[] result = new URI[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            result[i] = ValueFactoryImpl.getInstance().createURI(uris[i]);
+        }
+        return result;
+    }
+
+    @Test public void testExpansions() {
+        Map<String, Object> bAttributes = new HashMap<>();
+        bAttributes.put("subPropertyOf", "http://example.org/c");
+        bAttributes.put("equivalentProperty", "http://other.org/d");
+        Map<String, MicrodataRegistry.PropertyAttributes> properties = new HashMap<>();
+        properties.put("a", attributes("subPropertyOf", Arrays.asList("http://example.org/b")));
+        properties.put("b", new MicrodataRegistry.PropertyAttributes(bAttributes));
+        properties.put("c", attributes("subPropertyOf", "http://example.org/a"));
+        properties.put("e", attributes("label", "no expansions"));
+        MicrodataRegistry.RegistryEntry entry = new MicrodataRegistry.RegistryEntry("http://example.org/", properties);
+        new MicrodataRegistry(Collections.singletonList(entry));
+
+        assertArrayEquals(uris("http://example.org/b"), entry.getExpansions("a", false));
+        assertArrayEquals("subPropertyOf before equivalentProperty",
+                uris("http://example.org/c", "http://other.org/d"), entry.getExpansions("b", false));
+        assertArrayEquals("closure stops at the cycle",
+                uris("http://example.org/b", "http://example.org/c", "http://other.org/d"), entry.getExpansions("a", true));
+        assertEquals(0, entry.getExpansions("e", true).length);
+        assertEquals(0, entry.getExpansions("missing", false).length);
+        assertSame("compiled once", entry.getExpansions("a", false), entry.getExpansions("a", false));
+    }
+
+    @Test public void testAddPropertyRecompilesExpansions() {
+        MicrodataRegistry.RegistryEntry entry = new MicrodataRegistry.RegistryEntry("http://example.org/");
+        entry.addProperty("a", attributes("subPropertyOf", "http://example.org/b"));
+        assertArrayEquals(uris("http://example.org/b"), entry.getExpansions("a", false));
+        entry.addProperty("a", attributes("equivalentProperty", "http://example.org/c"));
+        assertArrayEquals(uris("http://example.org/c"), entry.getExpansions("a", false));
+        assertArrayEquals("no closure outside a registry", uris("http://example.org/c"), entry.getExpansions("a", true));
+    }
+
+    @Test public void testRegistryCacheSharesRegistries() throws IOException {
+        MicrodataRegistryCache cache = new MicrodataRegistryCache();
+        URL url = getClass().getResource("/ns/default-md.json");
+        MicrodataRegistry first = cache.getRegistry(url);
+        MicrodataRegistry second = cache.getRegistry(new URL(url.toExternalForm()));
+        assertSame("same registry for same url", first, second);
+        assertEquals("load count", 1, cache.getLoadCount());
+        assertEquals("hit count", 1, cache.getHitCount());
+
+        cache.clear();
+        MicrodataRegistry third = cache.getRegistry(url);
+        assertEquals("load count after clear", 2, cache.getLoadCount());
+        assertNotNull(third.match("http://schema.org/Book"));
+    }
+
+    @Test public void testRegistryCacheDoesNotCacheFailures() throws IOException {
+        MicrodataRegistryCache cache = new MicrodataRegistryCache();
+        URL url = new URL(getClass().getResource("/ns/default-md.json"), "no-such-registry.json");
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getRegistry(url);
+                fail("missing registry should not load");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals("both requests tried to load", 2, cache.getLoadCount());
+    }
+
+}
@@ -1,23 +1,51 @@
 package com.criticollab.microdata;
 
+import info.aduna.net.ParsedURI;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Model;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.helpers.StatementCollector;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
  * Whitebox Unit tests for RDFMicrodataParser
  */
 public class RDFMicrodataParserTest {
+    private static final String BASE = "http://example.org/page.html";
 
     @Test
     public void testFindTopLevelElements() throws IOException {
@@ -63,4 +91,403 @@ public class RDFMicrodataParserTest {
         assertEquals("get language of " + s , expected,ex.getLang(e1));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testStreamingMatchesDocumentExtraction() throws Exception {
+        String html = "<html lang='en'><body>"
+                + "<div itemscope itemtype='http://schema.org/Person' itemref='later shared'>"
+                + "<span itemprop='name'>Ann &amp; Bob</span>"
+                + "<p>unclosed paragraph<div itemprop='description'>a <b>bold</b> move</div>"
+                + "</div>"
+                + "<div itemscope itemtype='http://schema.org/Person' itemref='shared'><span itemprop='name' lang='de'>Carl</span></div>"
+                + "<script>if (a < b && '</div>') {}</script>"
+                + "<div id='shared' itemprop='knows' itemscope><span itemprop='name'>Dora</span></div>"
+                + "<ul><li id='later' itemprop='jobTitle'>Cook<li>ignored</ul>"
+                + "</body></html>";
+        Model fromDocument = new RDFMicrodataParser().extract(Jsoup.parse(html, BASE));
+
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.STREAMING, true);
+        Model streamed = new LinkedHashModel();
+        parser.setRDFHandler(new StatementCollector(streamed));
+        parser.parse(new StringReader(html), BASE);
+
+        assertTrue("streaming and document extraction agree:\n" + fromDocument + "\n" + streamed,
+                ModelUtil.equals(fromDocument, streamed));
+        assertEquals("statement count", 9, streamed.size());
+    }
+
+    private static int countPredicate(Model model, String name) {
+        int count = 0;
+        for (Statement st : model) {
+            if (st.getPredicate().stringValue().endsWith("#" + name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testStreamingRetainedLimit() throws Exception {
+        StringBuilder html = new StringBuilder("<div itemscope itemref='last'><span itemprop='name'>first</span></div>");
+        for (int i = 0; i < 50; i++) {
+            html.append("<p id='id").append(i).append("' itemprop='near'>").append(i).append("</p>")
+                    .append("<div itemscope itemref='id").append(i).append("'><span itemprop='name'>")
+                    .append(i).append("</span></div>");
+        }
+        html.append("<p id='last' itemprop='late'>end</p>");
+        Model fromDocument = new RDFMicrodataParser().extract(Jsoup.parse(html.toString(), BASE));
+        assertEquals(1, countPredicate(fromDocument, "late"));
+
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.STREAMING, true);
+        parser.getParserConfig().set(RDFMicrodataParser.STREAMING_RETAINED_LIMIT, 8);
+        Model streamed = new LinkedHashModel();
+        parser.setRDFHandler(new StatementCollector(streamed));
+        parser.parse(new StringReader(html.toString()), BASE);
+
+        assertEquals("every item is extracted", countPredicate(fromDocument, "name"), countPredicate(streamed, "name"));
+        assertEquals("nearby references are resolved", 50, countPredicate(streamed, "near"));
+        assertEquals("a reference beyond the limit finds nothing", 0, countPredicate(streamed, "late"));
+    }
+
+    @Test
+    public void testParallelItemsKeepDocumentOrder() throws Exception {
+        StringBuilder html = new StringBuilder("<html><body>");
+        html.append("<div id='shared' itemprop='brand' itemscope itemtype='http://schema.org/Brand'>")
+                .append("<span itemprop='name'>ACME</span></div>");
+        for (int i = 0; i < 200; i++) {
+            html.append("<div itemscope itemtype='http://schema.org/Product'")
+                    .append(i % 10 == 0 ? " itemref='shared'" : "").append(">")
+                    .append("<span itemprop='name'>Product ").append(i).append("</span>")
+                    .append("<div itemprop='offers' itemscope itemtype='http://schema.org/Offer'>")
+                    .append("<data itemprop='price' value='").append(i).append("'></data></div>")
+                    .append("</div>");
+        }
+        html.append("</body></html>");
+        Document document = Jsoup.parse(html.toString(), BASE);
+
+        List<Statement> sequential = new ArrayList<>();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(sequential));
+        parser.parse(new StringReader(html.toString()), BASE);
+
+        List<Statement> parallel = new ArrayList<>();
+        parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.PARALLEL_ITEMS, true);
+        parser.setRDFHandler(new StatementCollector(parallel));
+        parser.parse(new StringReader(html.toString()), BASE);
+
+        assertEquals("statement count", 200 * 5 + 20 * 3, parallel.size());
+        assertEquals("same statements in same order", canonicalize(sequential), canonicalize(parallel));
+        assertEquals("top level item count", 200, new RDFMicrodataParser().findTopLevelItems(document).size());
+    }
+
+    /**
+     * Rename blank nodes in order of first appearance, so that statement lists from different runs can be compared.
+     */
+    private static List<String> canonicalize(List<Statement> statements) {
+        Map<Value, String> labels = new HashMap<>();
+        List<String> result = new ArrayList<>();
+        for (Statement st : statements) {
+            result.add(label(labels, st.getSubject()) + " " + st.getPredicate() + " " + label(labels, st.getObject()));
+        }
+        return result;
+    }
+
+    private static String label(Map<Value, String> labels, Value value) {
+        if (!(value instanceof BNode)) {
+            return value.toString();
+        }
+        String label = labels.get(value);
+        if (label == null) {
+            label = "_:b" + labels.size();
+            labels.put(value, label);
+        }
+        return label;
+    }
+
+
+    @Test
+    public void testPredicatesAreSharedBetweenParsers() throws Exception {
+        String html = "<div itemscope itemtype='http://schema.org/Person'><span itemprop='name'>Alice</span></div>";
+        List<Statement> first = new ArrayList<>();
+        List<Statement> second = new ArrayList<>();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(first));
+        parser.parse(new StringReader(html), BASE);
+        parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(second));
+        parser.parse(new StringReader(html), BASE);
+        assertEquals(2, first.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i).getPredicate(), second.get(i).getPredicate());
+        }
+        assertSame("type", first.get(0).getObject(), second.get(0).getObject());
+    }
+
+    @Test
+    public void testPredicatesOfATypeWithoutAVocabulary() throws Exception {
+        String html = "<div itemscope itemtype='urn:example:Thing'><span itemprop='http://schema.org/name'>Alice</span>"
+                + "<span itemprop='nick'>Al</span></div>";
+        Model model = new RDFMicrodataParser().extract(Jsoup.parse(html, BASE));
+        assertEquals(3, model.size());
+        assertEquals("absolute name", 1, model.filter(null, new URIImpl("http://schema.org/name"), null).size());
+        assertEquals("relative name against the document", 1, model.filter(null, new URIImpl(BASE + "#nick"), null).size());
+    }
+
+    @Test
+    public void testHasSchemeAgreesWithParsedURI() {
+        String[] uris = {"http://schema.org/name", "name", "", ":name", "a:b", "urn:isbn:123", "mailto:x@example.org",
+                "/path:x", "?q:x", "#frag:x", "rel/a:b", "jar:file:/x.jar!/a", "x1+.-:y", "name#x", "http:"};
+        for (String uri : uris) {
+            assertEquals(uri, new ParsedURI(uri).isAbsolute(), RDFMicrodataParser.hasScheme(uri));
+        }
+    }
+
+    @Test
+    public void testTokensSeparatedByAnyWhitespace() throws Exception {
+        String html = "<div itemscope itemtype=' http://schema.org/Person\thttp://schema.org/Thing ' itemref='a\n b'>"
+                + "<span itemprop='name\n\tgivenName'>Alice</span></div>"
+                + "<p id='a' itemprop=' '>none</p><p id='b' itemprop='  email  '>alice@example.org</p>";
+        Model model = new LinkedHashModel();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(model));
+        parser.parse(new StringReader(html), BASE);
+        assertEquals("2 types, 2 names, 1 email: " + model, 5, model.size());
+        assertEquals(2, model.filter(null, RDF.TYPE, null).size());
+        assertEquals(1, model.filter(null, new URIImpl("http://schema.org/email"), null).size());
+    }
+
+    @Test
+    public void testLanguagesOfDeeplyNestedProperties() throws Exception {
+        StringBuilder html = new StringBuilder("<div itemscope lang='de'><section lang=''>");
+        int depth = 5000;
+        for (int i = 0; i < depth; i++) {
+            html.append("<span>");
+        }
+        html.append("<b itemprop='a'>x</b><i lang='fr' itemprop='b'>y</i>");
+        for (int i = 0; i < depth; i++) {
+            html.append("</span>");
+        }
+        html.append("</section><b itemprop='c'>z</b></div>");
+        Document document = Jsoup.parse(html.toString(), BASE);
+        Model model = new RDFMicrodataParser().extract(document);
+        assertEquals(3, model.size());
+        for (Statement st : model) {
+            Literal literal = (Literal) st.getObject();
+            switch (literal.getLabel()) {
+                case "x":
+                    assertNull("empty lang attribute means no language", literal.getLanguage());
+                    break;
+                case "y":
+                    assertEquals("fr", literal.getLanguage());
+                    break;
+                default:
+                    assertEquals("de", literal.getLanguage());
+                    break;
+            }
+        }
+    }
+
+    @Test
+    public void testTextContentOfDeeplyNestedElements() throws Exception {
+        StringBuilder html = new StringBuilder("<div itemscope><div itemprop='text'>a<!-- comment -->");
+        int depth = 1000;
+        for (int i = 0; i < depth; i++) {
+            html.append("<span>");
+        }
+        html.append("b<script>ignored()</script>");
+        for (int i = 0; i < depth; i++) {
+            html.append("</span>");
+        }
+        html.append("c</div></div>");
+        Model model = new RDFMicrodataParser().extract(Jsoup.parse(html.toString(), BASE));
+        assertEquals(1, model.size());
+        assertEquals("abc", model.iterator().next().getObject().stringValue());
+    }
+
+    @Test
+    public void testMaxLiteralLength() throws Exception {
+        String html = "<div itemscope><p itemprop='body'>abc<b>def</b>ghi</p><p itemprop='short'>ab</p>"
+                + "<p itemprop='pair'>abc\ud83d\ude00</p></div>";
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.MAX_LITERAL_LENGTH, 4);
+        Model model = parser.extract(Jsoup.parse(html, BASE));
+        Map<String, String> values = new HashMap<>();
+        for (Statement st : model) {
+            values.put(st.getPredicate().getLocalName(), st.getObject().stringValue());
+        }
+        assertEquals("abcd", values.get("body"));
+        assertEquals("ab", values.get("short"));
+        assertEquals("surrogate pair is not split", "abc", values.get("pair"));
+    }
+
+    @Test
+    public void testDeeplyNestedItems() throws Exception {
+        StringBuilder html = new StringBuilder("<div itemscope itemtype='http://schema.org/Thing'>");
+        int depth = 2000;
+        for (int i = 0; i < depth; i++) {
+            html.append("<div itemprop='part' itemscope><b itemprop='name'>").append(i).append("</b>");
+        }
+        for (int i = 0; i < depth; i++) {
+            html.append("</div>");
+        }
+        html.append("</div>");
+        Model model = new RDFMicrodataParser().extract(Jsoup.parse(html.toString(), BASE));
+        assertEquals("type, and a part and name for each level", 1 + 2 * depth, model.size());
+        assertEquals(depth, model.filter(null, new URIImpl("http://schema.org/part"), null).size());
+    }
+
+    @Test
+    public void testItemrefCycleIsNotExpandedAgain() throws Exception {
+        String html = "<div id='a' itemscope itemtype='http://schema.org/Person' itemprop-reverse='author' itemref='b'>"
+                + "<span itemprop='name'>A</span></div>"
+                + "<div id='b' itemprop='knows' itemscope itemref='a'><span itemprop='name'>B</span></div>";
+        // the properties found through itemref are in tree order, in both modes
+        for (boolean streaming : new boolean[]{false, true}) {
+            List<Statement> statements = new ArrayList<>();
+            RDFMicrodataParser parser = new RDFMicrodataParser();
+            parser.getParserConfig().set(RDFMicrodataParser.STREAMING, streaming);
+            parser.setRDFHandler(new StatementCollector(statements));
+            parser.parse(new StringReader(html), BASE);
+            assertEquals(5, statements.size());
+            Resource a = statements.get(0).getSubject();
+            Resource b = statements.get(3).getSubject();
+            assertEquals(new StatementImpl(a, new URIImpl("http://schema.org/author"), b), statements.get(2));
+            assertEquals(new StatementImpl(a, new URIImpl("http://schema.org/knows"), b), statements.get(4));
+        }
+    }
+
+    @Test
+    public void testCharactersAreNotReencoded() throws Exception {
+        String html = "<div itemscope><span itemprop='name'>Caf\u00e9 \ud83d\ude00</span></div>";
+        byte[] latin1 = "<meta charset='utf-8'><div itemscope><span itemprop='name'>Caf\u00e9</span></div>"
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        Model fromReader = new LinkedHashModel();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(fromReader));
+        parser.parse(new StringReader(html), BASE);
+        assertEquals("Caf\u00e9 \ud83d\ude00", fromReader.iterator().next().getObject().stringValue());
+
+        Model fromBytes = new LinkedHashModel();
+        parser.setRDFHandler(new StatementCollector(fromBytes));
+        parser.parse(new ByteArrayInputStream(latin1), StandardCharsets.ISO_8859_1, BASE);
+        assertEquals("the given charset wins over the page's", "Caf\u00e9",
+                fromBytes.iterator().next().getObject().stringValue());
+    }
+
+    @Test
+    public void testParseSlicesOfABuffer() throws Exception {
+        String first = "<div itemscope><span itemprop='name'>Caf\u00e9</span></div>";
+        String second = "<meta http-equiv='Content-Type' content='text/html; charset=ISO-8859-1'>"
+                + "<div itemscope><span itemprop='name'>Cr\u00e8me</span></div>";
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archive.write(new byte[]{(byte) 0xef, (byte) 0xbb, (byte) 0xbf});
+        archive.write(first.getBytes(StandardCharsets.UTF_8));
+        int secondStart = archive.size();
+        archive.write(second.getBytes(StandardCharsets.ISO_8859_1));
+        ByteBuffer bytes = ByteBuffer.wrap(archive.toByteArray());
+
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        Model model = new LinkedHashModel();
+        parser.setRDFHandler(new StatementCollector(model));
+        bytes.limit(secondStart);
+        parser.parse(bytes.slice(), null, BASE);
+        assertEquals("byte order mark is skipped", 1, model.size());
+        assertEquals("Caf\u00e9", model.iterator().next().getObject().stringValue());
+
+        model.clear();
+        bytes.limit(bytes.capacity()).position(secondStart);
+        parser.parse(bytes, null, BASE);
+        assertEquals("position is not changed", secondStart, bytes.position());
+        assertEquals("declared charset is used", "Cr\u00e8me", model.iterator().next().getObject().stringValue());
+
+        Path file = Files.createTempFile("microdata", ".html");
+        try {
+            Files.write(file, first.getBytes(StandardCharsets.UTF_8));
+            model.clear();
+            parser.getParserConfig().set(RDFMicrodataParser.STREAMING, true);
+            parser.parse(file, StandardCharsets.UTF_8, BASE);
+            assertEquals("Caf\u00e9", model.iterator().next().getObject().stringValue());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testItemPropertiesInTreeOrder() throws Exception {
+        Document document = Jsoup.parse("<p id='early' itemprop='a'>1</p>"
+                + "<div itemscope itemref='late early'><section><span itemprop='b'>2</span></section>"
+                + "<i itemprop='c'>3</i><i itemprop='c'>3</i></div>"
+                + "<p id='late' itemprop='d'>4</p>", BASE);
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setDocument(document);
+        List<String> names = new ArrayList<>();
+        for (Element element : parser.findItemProperties(document.select("div").first())) {
+            names.add(element.attr("itemprop"));
+        }
+        assertEquals("equal elements are distinct properties", Arrays.asList("a", "b", "c", "c", "d"), names);
+    }
+
+    @Test
+    public void testParseStats() throws Exception {
+        String html = "<div itemscope itemtype='http://schema.org/Product' itemref='brand'>"
+                + "<span itemprop='name'>Anvil</span>"
+                + "<div itemprop='offers' itemscope><data itemprop='price' value='10'></data></div></div>"
+                + "<div id='brand' itemprop='brand' itemscope><span itemprop='name'>ACME</span></div>";
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(new ArrayList<Statement>()));
+        parser.parse(new StringReader(html), BASE);
+        assertNull("not collected by default", parser.getLastParseStats());
+
+        for (boolean streaming : new boolean[]{false, true}) {
+            parser.getParserConfig().set(RDFMicrodataParser.COLLECT_STATS, true);
+            parser.getParserConfig().set(RDFMicrodataParser.STREAMING, streaming);
+            parser.parse(new StringReader(html), BASE);
+            ParseStats stats = parser.getLastParseStats();
+            assertEquals("items", 3, stats.getItemCount());
+            assertEquals("properties", 5, stats.getPropertyCount());
+            assertEquals("itemrefs", 1, stats.getItemrefCount());
+            assertEquals("statements", 6, stats.getStatementCount());
+            assertEquals("registry lookups", 3, stats.getRegistryLookupCount());
+            assertEquals("depth", 2, stats.getMaxItemDepth());
+            assertTrue(stats.getHtmlParseNanos() > 0);
+        }
+
+        JmxParseMetrics metrics = new JmxParseMetrics();
+        parser = new RDFMicrodataParser();
+        parser.setMetricsSink(metrics);
+        parser.setRDFHandler(new StatementCollector(new ArrayList<Statement>()));
+        parser.parse(new StringReader(html), BASE);
+        parser.parse(new StringReader(html), BASE);
+        assertEquals(2, metrics.getParseCount());
+        assertEquals(12, metrics.getStatementCount());
+        assertEquals("6 statements per parse counted in [4, 8)", 2, metrics.getStatementsPerParseHistogram()[3]);
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        String html = "<div itemscope itemtype='http://example.org/T http://example.org/T'>"
+                + "<span itemprop='name'>a</span><span itemprop='name'>a</span><span itemprop='name'>b</span></div>"
+                + "<div itemscope itemid='http://example.org/x'><span itemprop='http://example.org/p'>v</span></div>"
+                + "<div itemscope itemid='http://example.org/x'><span itemprop='http://example.org/p'>v</span></div>";
+        List<Statement> statements = new ArrayList<>();
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.setRDFHandler(new StatementCollector(statements));
+        parser.parse(new StringReader(html), BASE);
+        assertEquals("repeats are kept by default", 7, statements.size());
+
+        parser.getParserConfig().set(RDFMicrodataParser.DEDUPLICATE, true);
+        parser.getParserConfig().set(RDFMicrodataParser.COLLECT_STATS, true);
+        for (boolean parallel : new boolean[]{false, true}) {
+            parser.getParserConfig().set(RDFMicrodataParser.PARALLEL_ITEMS, parallel);
+            statements.clear();
+            parser.parse(new StringReader(html), BASE);
+            assertEquals(new HashSet<>(statements).size(), statements.size());
+            assertEquals(4, statements.size());
+            assertEquals(4, parser.getLastParseStats().getStatementCount());
+            assertEquals(3, parser.getLastParseStats().getDuplicateStatementCount());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatementDeduplicatorTest {
+    private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+    private static final URI S = VF.createURI("http://example.org/s");
+    private static final URI P = VF.createURI("http://example.org/p");
+
+    private static Statement statement(int i) {
+        return VF.createStatement(S, P, VF.createLiteral("value " + i));
+    }
+
+    @Test
+    public void testValuesOfDifferentKindsAreDistinct() {
+        StatementDeduplicator deduplicator = new StatementDeduplicator(100);
+        assertTrue(deduplicator.add(VF.createStatement(S, P, VF.createURI("http://example.org/o"))));
+        assertTrue(deduplicator.add(VF.createStatement(S, P, VF.createLiteral("http://example.org/o"))));
+        assertTrue(deduplicator.add(VF.createStatement(S, P, VF.createLiteral("http://example.org/o", "en"))));
+        assertTrue(deduplicator.add(VF.createStatement(S, P, VF.createLiteral("http://example.org/o", P))));
+        assertTrue(deduplicator.add(VF.createStatement(S, P, VF.createBNode("o"))));
+        assertFalse(deduplicator.add(VF.createStatement(S, P, VF.createLiteral("http://example.org/o", "en"))));
+    }
+
+    @Test
+    public void testSpillToFilterAndPassThroughWhenFull() {
+        int limit = 10;
+        int filtered = limit * StatementDeduplicator.SPILL_FACTOR;
+        StatementDeduplicator deduplicator = new StatementDeduplicator(limit);
+        for (int i = 0; i < 100; i++) {
+            assertTrue("new statement " + i, deduplicator.add(statement(i)));
+        }
+        for (int i = 0; i < limit + filtered; i++) {
+            assertFalse("remembered statement " + i, deduplicator.add(statement(i)));
+        }
+        for (int i = limit + filtered; i < 100; i++) {
+            assertTrue("statement " + i + " is passed on once the filter is full", deduplicator.add(statement(i)));
+        }
+
+        deduplicator.clear();
+        assertTrue("forgotten after clear", deduplicator.add(statement(0)));
+    }
+}
@@ -0,0 +1,63 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TokenCursorTest {
+    private static List<String> tokens(TokenCursor cursor, String value) {
+        List<String> tokens = new ArrayList<>();
+        cursor.reset(value);
+        while (cursor.next()) {
+            tokens.add(cursor.token());
+        }
+        return tokens;
+    }
+
+    @Test
+    public void testSplitsOnAsciiWhitespace() {
+        TokenCursor cursor = new TokenCursor();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), tokens(cursor, " a\tb\n\nc\r\f d  "));
+        assertEquals(Arrays.asList("name"), tokens(cursor, "name"));
+        assertEquals(new ArrayList<String>(), tokens(cursor, ""));
+        assertEquals(new ArrayList<String>(), tokens(cursor, " \t "));
+        // non-breaking space is not ASCII whitespace
+        assertEquals(Arrays.asList("a\u00a0b"), tokens(cursor, "a\u00a0b"));
+    }
+
+    @Test
+    public void testSingleTokenIsNotCopied() {
+        String value = "http://schema.org/Person";
+        TokenCursor cursor = new TokenCursor().reset(value);
+        assertTrue(cursor.next());
+        assertSame(value, cursor.token());
+        assertFalse(cursor.next());
+        assertFalse("stays at the end", cursor.next());
+    }
+
+    @Test
+    public void testRepeatedTokensAreNotCopiedAgain() {
+        TokenCursor cursor = new TokenCursor().reset("name description");
+        assertTrue(cursor.next());
+        String name = cursor.token();
+        cursor.reset(" url name ");
+        assertTrue(cursor.next());
+        assertEquals("url", cursor.token());
+        assertTrue(cursor.next());
+        assertSame(name, cursor.token());
+    }
+
+    @Test
+    public void testHasTokens() {
+        assertTrue(TokenCursor.hasTokens(" x "));
+        assertFalse(TokenCursor.hasTokens(""));
+        assertFalse(TokenCursor.hasTokens("\n\t "));
+    }
+}
@@ -0,0 +1,52 @@
+package com.criticollab.microdata;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class URICacheTest {
+    @Test
+    public void testRepeatedLookupsShareOneURI() {
+        URICache cache = new URICache(ValueFactoryImpl.getInstance(), 100);
+        URI name = cache.getURI("http://schema.org/", "name");
+        assertEquals("http://schema.org/name", name.stringValue());
+        assertSame(name, cache.getURI("http://schema.org/", "name"));
+        assertSame(name, cache.getURI("http://schema.org/", new String("name")));
+        assertEquals("hits", 2, cache.getHitCount());
+        assertEquals("misses", 1, cache.getMissCount());
+        assertEquals("size", 1, cache.size());
+    }
+
+    @Test
+    public void testEmptyNamespace() {
+        URICache cache = new URICache(ValueFactoryImpl.getInstance(), 100);
+        URI type = cache.getURI("", "http://schema.org/Person");
+        assertEquals("http://schema.org/Person", type.stringValue());
+        // the key is (namespace, local name), not the URI string
+        URI other = cache.getURI("http://schema.org/", "Person");
+        assertEquals(type, other);
+        assertNotSame(type, other);
+    }
+
+    @Test
+    public void testClearedWhenFull() {
+        URICache cache = new URICache(ValueFactoryImpl.getInstance(), 3);
+        URI first = cache.getURI("http://example.org/", "p0");
+        for (int i = 1; i < 3; i++) {
+            cache.getURI("http://example.org/", "p" + i);
+        }
+        assertEquals(3, cache.size());
+        cache.getURI("http://example.org/", "p3");
+        assertEquals("emptied, then p3 added", 1, cache.size());
+        assertNotSame(first, cache.getURI("http://example.org/", "p0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidURI() {
+        new URICache(ValueFactoryImpl.getInstance(), 10).getURI("", "not a uri");
+    }
+}
@@ -32,21 +32,25 @@ public class W3CMicrodataToRDFExtractionTests {
     public void runTest(String name, URL src, URL result,URL registry) throws IOException, RDFParseException, RDFHandlerException {
         logger.debug("run Test method called with {} , {}, {}", name, src, result);
         //Document doc = Jsoup.parse(src.openStream(),"UTF-8",src.toString());
+        Model actual = extract(src, registry);
+        Model expected = RDFValidationTestRunner.parseTurtle(result.openStream(), getMagicalizedBase(result));
+        compareModels(expected, actual);
+    }
+
+    protected Model extract(URL src, URL registry) throws IOException, RDFParseException, RDFHandlerException {
         Document doc = Jsoup.parse(src.openStream(), "UTF-8", getMagicalizedBase(src));
         RDFMicrodataParser ex = new RDFMicrodataParser();
         ex.getParserConfig().set(RDFMicrodataParser.REGISTRY, registry);
-        Model actual = ex.extract(doc);
-        Model expected = RDFValidationTestRunner.parseTurtle(result.openStream(), getMagicalizedBase(result));
-        compareModels(doc, expected, actual);
+        return ex.extract(doc);
     }
 
-    private String getMagicalizedBase(URL realURI) {
+    protected String getMagicalizedBase(URL realURI) {
         String s = realURI.toString();
         String lastPart = s.substring(s.lastIndexOf('/') + 1);
         return MAGIC_BASE + lastPart;
     }
 
-    private void compareModels(Document doc, Model expected, Model actual) throws RDFHandlerException {
+    private void compareModels(Model expected, Model actual) throws RDFHandlerException {
         // logger.debug("doc:\n{}", doc);
         // logger.debug("model:\n{}", expected);
         for (Namespace namespace : expected.getNamespaces()) {
@@ -0,0 +1,35 @@
+package com.criticollab.microdata;
+
+import com.criticollab.microdata.support.ManifestPath;
+import com.criticollab.microdata.support.RDFValidationTestRunner;
+import org.junit.runner.RunWith;
+import org.openrdf.model.Model;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Runs the W3C test suite against the streaming extractor.
+ */
+@RunWith(RDFValidationTestRunner.class)
+@ManifestPath("/w3c-microdata-rdf-tests/manifest.ttl")
+public class W3CStreamingMicrodataToRDFExtractionTests extends W3CMicrodataToRDFExtractionTests {
+
+    @Override
+    protected Model extract(URL src, URL registry) throws IOException, RDFParseException, RDFHandlerException {
+        RDFMicrodataParser parser = new RDFMicrodataParser();
+        parser.getParserConfig().set(RDFMicrodataParser.REGISTRY, registry);
+        parser.getParserConfig().set(RDFMicrodataParser.STREAMING, true);
+        Model model = new LinkedHashModel();
+        parser.setRDFHandler(new StatementCollector(model));
+        try (InputStream in = src.openStream()) {
+            parser.parse(in, getMagicalizedBase(src));
+        }
+        return model;
+    }
+}